@@ -0,0 +1,81 @@
+package com.tntmodders.transporter.logic;
+
+import it.unimi.dsi.fastutil.longs.LongList;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 発送のたびに呼ばれる問い合わせにかかる時間を、輸送網の中ほどの道で計測する。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QueryBenchmark {
+    @Param({"CHAIN", "GRID", "FAN_OUT", "MESH"})
+    public Topology.Shape shape;
+    @Param({"100", "1000", "10000"})
+    public int size;
+    private Topology topology;
+    private TransportContext context;
+    private Road road;
+    private Node receiver;
+    private Freight freight;
+    private Route route;
+    private BlockCoord next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        topology = Topology.build(shape, size);
+        context = newContext();
+        road = topology.roads.get(topology.roads.size() / 2);
+        receiver = topology.net.getActiveNode(road.receiver().asLong());
+        freight = new Freight(context, new ItemStack(Items.COBBLESTONE, 64), road.sender(), road.receiver());
+        route = Route.of(road.sender());
+        var routes = topology.net.getRoutes(road.receiver());
+        next = routes.isEmpty() ? road.sender() : BlockCoord.fromLong(routes.getLong(0));
+    }
+
+    private TransportContext newContext() {
+        return new TransportContext(topology.world, TransportSettings.DEFAULT, topology.net);
+    }
+
+    @Benchmark
+    public LongList getRoutes() {
+        return topology.net.getRoutes(road.receiver());
+    }
+
+    @Benchmark
+    public boolean canReceive(FreshContext fresh) {
+        return receiver.canReceive(fresh.context, freight.stack, route, road.receiver());
+    }
+
+    @Benchmark
+    public Freight getNext() {
+        return freight.getNext(context, next);
+    }
+
+    /**
+     * 探索の結果は更新ごとに共有されるので、計測の外で呼び出しごとに作り直す更新の状態。
+     * 他の問い合わせの計測に呼び出しごとの準備を含めないよう、別の状態に分ける。
+     */
+    @State(Scope.Thread)
+    public static class FreshContext {
+        private TransportContext context;
+
+        @Setup(Level.Invocation)
+        public void setup(QueryBenchmark benchmark) {
+            context = benchmark.newContext();
+        }
+    }
+}
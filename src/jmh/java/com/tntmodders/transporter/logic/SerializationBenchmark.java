@@ -0,0 +1,85 @@
+package com.tntmodders.transporter.logic;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.level.saveddata.SavedData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 輸送網の保存と読み込みにかかる時間を、すべての領域について計測する。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+    /**
+     * 荷物を行き渡らせるために、計測前に進めるtick数。
+     */
+    private static final int WARMUP_TICKS = 400;
+    @Param({"CHAIN", "GRID", "FAN_OUT", "MESH"})
+    public Topology.Shape shape;
+    @Param({"1000", "10000"})
+    public int size;
+    private Topology topology;
+    private final ArrayList<Long> regions = new ArrayList<>();
+    private final HashMap<Long, CompoundTag> saved = new HashMap<>();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        topology = Topology.build(shape, size);
+        for (int i = 0; i < WARMUP_TICKS; i++) {
+            topology.tick();
+        }
+        topology.coords.stream().mapToLong(coord -> BlockCoord.getRegionKey(coord.asLong())).distinct().forEach(regions::add);
+        for (var region : regions) {
+            saved.put(region, topology.net.snapshotRegion(region).toNBT(new CompoundTag()));
+        }
+    }
+
+    /**
+     * サーバーのスレッドで行う、状態の複製だけを計測する。
+     */
+    @Benchmark
+    public void snapshot(Blackhole blackhole) {
+        for (var region : regions) {
+            blackhole.consume(topology.net.snapshotRegion(region));
+        }
+    }
+
+    @Benchmark
+    public void serialize(Blackhole blackhole) {
+        for (var region : regions) {
+            blackhole.consume(topology.net.snapshotRegion(region).toNBT(new CompoundTag()));
+        }
+    }
+
+    @Benchmark
+    public TransportNet deserialize() {
+        var net = new TransportNet(() -> ItemStack.EMPTY);
+        saved.forEach((region, tag) -> net.loadRegion(region, new DiscardingShard(), tag));
+        return net;
+    }
+
+    /**
+     * 読み込みの計測のために登録する、何も保存しない保存先。
+     */
+    private static final class DiscardingShard extends SavedData {
+        @Override
+        public CompoundTag save(CompoundTag tag) {
+            return tag;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.tntmodders.transporter.logic;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.Direction;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import net.minecraftforge.items.IItemHandler;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+/**
+ * ベンチマーク用に、メモリ上のディメンションに作った輸送網。
+ */
+public final class Topology {
+    /**
+     * 輸送網の形。
+     */
+    public enum Shape {
+        /**
+         * 一列に並んだ道標。
+         */
+        CHAIN,
+        /**
+         * 格子状に並び、右と下にだけ接続された道標。
+         */
+        GRID,
+        /**
+         * 根から二分木状に広がり、葉がすべて取り出し先になっている道標。
+         */
+        FAN_OUT,
+        /**
+         * 格子状に並び、斜めを含む周囲の8つと双方向に接続された道標。
+         */
+        MESH
+    }
+
+    /**
+     * 道標の間隔。
+     */
+    private static final int SPACING = 4;
+    private static final int Y = 64;
+
+    static {
+        // アイテムを扱うため、レジストリを初期化する。クラスの初期化時に1度だけ行うので、計測には含まれない。
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+    }
+
+    final TransportNet net = new TransportNet(() -> ItemStack.EMPTY);
+    final InMemoryWorld world = new InMemoryWorld();
+    /**
+     * 道標同士を結ぶ道の一覧。
+     */
+    final ArrayList<Road> roads = new ArrayList<>();
+    /**
+     * 構成要素の座標の一覧。追加した順に、重複なく並べる。
+     */
+    final LinkedHashSet<BlockCoord> coords = new LinkedHashSet<>();
+
+    private Topology() {
+    }
+
+    /**
+     * 輸送網を作り、すべてのチャンクを読み込まれた状態にする。
+     *
+     * @param shape 輸送網の形
+     * @param size  道標のおおよその数
+     * @return 作った輸送網
+     */
+    static Topology build(Shape shape, int size) {
+        var result = new Topology();
+        switch (shape) {
+            case CHAIN -> result.buildChain(size);
+            case GRID -> result.buildGrid((int) Math.ceil(Math.sqrt(size)), false);
+            case FAN_OUT -> result.buildFanOut(size);
+            case MESH -> result.buildGrid((int) Math.ceil(Math.sqrt(size)), true);
+        }
+        var chunks = new HashSet<Long>();
+        result.coords.forEach(coord -> chunks.add(coord.getChunkKey()));
+        chunks.forEach(result.net::onChunkLoaded);
+        return result;
+    }
+
+    /**
+     * 輸送網とディメンションを1tick進める。
+     */
+    void tick() {
+        world.tick();
+        net.update(world, TransportSettings.DEFAULT);
+    }
+
+    private void buildChain(int size) {
+        for (int i = 0; i + 1 < size; i++) {
+            connect(guidepost(i, 0), guidepost(i + 1, 0));
+        }
+        addSource(guidepost(0, 0));
+        addSink(guidepost(size - 1, 0));
+    }
+
+    private void buildGrid(int side, boolean mesh) {
+        for (int i = 0; i < side; i++) {
+            for (int j = 0; j < side; j++) {
+                if (!mesh) {
+                    if (i + 1 < side) connect(guidepost(i, j), guidepost(i + 1, j));
+                    if (j + 1 < side) connect(guidepost(i, j), guidepost(i, j + 1));
+                    continue;
+                }
+                for (int di = -1; di <= 1; di++) {
+                    for (int dj = -1; dj <= 1; dj++) {
+                        var ni = i + di;
+                        var nj = j + dj;
+                        if ((di == 0 && dj == 0) || ni < 0 || nj < 0 || ni >= side || nj >= side) continue;
+                        connect(guidepost(i, j), guidepost(ni, nj));
+                    }
+                }
+            }
+        }
+        addSource(guidepost(0, 0));
+        addSink(guidepost(side - 1, side - 1));
+    }
+
+    private void buildFanOut(int size) {
+        // 番号iの道標の子は2i+1と2i+2で、深さごとに列を分けて並べる。
+        for (int i = 0; i < size; i++) {
+            var hasChild = false;
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+                connect(treeNode(i), treeNode(child));
+                hasChild = true;
+            }
+            if (!hasChild) addSink(treeNode(i));
+        }
+        addSource(treeNode(0));
+    }
+
+    private static BlockCoord treeNode(int index) {
+        var depth = 31 - Integer.numberOfLeadingZeros(index + 1);
+        return guidepost(depth, index + 1 - (1 << depth));
+    }
+
+    private static BlockCoord guidepost(int i, int j) {
+        return new BlockCoord(i * SPACING, Y, j * SPACING);
+    }
+
+    private void connect(BlockCoord sender, BlockCoord receiver) {
+        var road = new Road(sender, receiver);
+        if (net.addRoad(road, new Guidepost(), new Guidepost())) {
+            roads.add(road);
+            coords.add(sender);
+            coords.add(receiver);
+        }
+    }
+
+    /**
+     * 道標の上に、無限にアイテムを取り出せるインベントリを接続する。
+     */
+    private void addSource(BlockCoord guidepost) {
+        var coord = guidepost.relative(Direction.UP);
+        world.addInventory(coord, new InfiniteSource());
+        net.addRoad(new Road(coord, guidepost), new ExternalStorage(), new Guidepost());
+        coords.add(coord);
+    }
+
+    /**
+     * 道標の上に、無限にアイテムを受け取れるインベントリを接続する。
+     */
+    private void addSink(BlockCoord guidepost) {
+        var coord = guidepost.relative(Direction.UP);
+        world.addInventory(coord, new VoidSink());
+        net.addRoad(new Road(guidepost, coord), new Guidepost(), new ExternalStorage());
+        coords.add(coord);
+    }
+
+    /**
+     * 常に丸石を1スタック取り出せるインベントリ。
+     */
+    private static final class InfiniteSource implements IItemHandler {
+        @Override
+        public int getSlots() {
+            return 1;
+        }
+
+        @Override
+        public ItemStack getStackInSlot(int slot) {
+            return new ItemStack(Items.COBBLESTONE, 64);
+        }
+
+        @Override
+        public ItemStack insertItem(int slot, ItemStack stack, boolean simulate) {
+            return stack;
+        }
+
+        @Override
+        public ItemStack extractItem(int slot, int amount, boolean simulate) {
+            return new ItemStack(Items.COBBLESTONE, Math.min(amount, 64));
+        }
+
+        @Override
+        public int getSlotLimit(int slot) {
+            return 64;
+        }
+
+        @Override
+        public boolean isItemValid(int slot, ItemStack stack) {
+            return false;
+        }
+    }
+
+    /**
+     * 何でも受け取って消すインベントリ。
+     */
+    private static final class VoidSink implements IItemHandler {
+        @Override
+        public int getSlots() {
+            return 1;
+        }
+
+        @Override
+        public ItemStack getStackInSlot(int slot) {
+            return ItemStack.EMPTY;
+        }
+
+        @Override
+        public ItemStack insertItem(int slot, ItemStack stack, boolean simulate) {
+            return ItemStack.EMPTY;
+        }
+
+        @Override
+        public ItemStack extractItem(int slot, int amount, boolean simulate) {
+            return ItemStack.EMPTY;
+        }
+
+        @Override
+        public int getSlotLimit(int slot) {
+            return 64;
+        }
+
+        @Override
+        public boolean isItemValid(int slot, ItemStack stack) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.tntmodders.transporter.logic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1tick分の{@link TransportNet#update}にかかる時間を計測する。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UpdateBenchmark {
+    /**
+     * 計測前に進めるtick数。
+     */
+    private static final int WARMUP_TICKS = 2000;
+    @Param({"CHAIN", "GRID", "FAN_OUT", "MESH"})
+    public Topology.Shape shape;
+    @Param({"100", "1000", "10000"})
+    public int size;
+    private Topology topology;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        topology = Topology.build(shape, size);
+        // 荷物が輸送網に行き渡った状態から計測する。
+        for (int i = 0; i < WARMUP_TICKS; i++) {
+            topology.tick();
+        }
+    }
+
+    @Benchmark
+    public void update() {
+        topology.tick();
+    }
+}
@@ -0,0 +1,50 @@
+package com.tntmodders.transporter;
+
+import com.tntmodders.transporter.logic.BlockCoord;
+import com.tntmodders.transporter.logic.WorldAccess;
+import net.minecraft.core.Direction;
+import net.minecraft.util.profiling.ProfilerFiller;
+import net.minecraft.world.Containers;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.level.Level;
+import net.minecraftforge.common.capabilities.ForgeCapabilities;
+import net.minecraftforge.common.util.LazyOptional;
+import net.minecraftforge.items.IItemHandler;
+
+import javax.annotation.Nullable;
+
+/**
+ * 実際のディメンションを輸送網から操作する。
+ */
+public class LevelWorldAccess implements WorldAccess {
+    private final Level level;
+
+    public LevelWorldAccess(Level level) {
+        this.level = level;
+    }
+
+    @Override
+    public long getGameTime() {
+        return level.getGameTime();
+    }
+
+    @Override
+    public LazyOptional<IItemHandler> getItemHandler(BlockCoord coord, @Nullable Direction side) {
+        // チャンクの読み込みを引き起こさないよう、読み込まれていることを確認する。
+        var pos = coord.toBlockPos();
+        if (!level.isLoaded(pos)) return LazyOptional.empty();
+        var blockEntity = level.getBlockEntity(pos);
+        if (blockEntity == null) return LazyOptional.empty();
+        return blockEntity.getCapability(ForgeCapabilities.ITEM_HANDLER, side);
+    }
+
+    @Override
+    public void drop(BlockCoord coord, ItemStack stack) {
+        Containers.dropItemStack(level, coord.x(), coord.y(), coord.z(), stack);
+    }
+
+    @Override
+    public ProfilerFiller getProfiler() {
+        return level.getProfiler();
+    }
+}
@@ -0,0 +1,39 @@
+package com.tntmodders.transporter;
+
+import com.tntmodders.transporter.logic.TransportNet;
+import net.minecraft.core.Direction;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraftforge.common.capabilities.Capability;
+import net.minecraftforge.common.capabilities.ICapabilitySerializable;
+import net.minecraftforge.common.util.LazyOptional;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 輸送網をディメンションのCapabilityとして付与し、セーブデータとの読み書きを仲介する。
+ */
+public class TransportNetProvider implements ICapabilitySerializable<CompoundTag> {
+    private final TransportNet net;
+    private final LazyOptional<TransportNet> holder;
+
+    public TransportNetProvider(TransportNet net) {
+        this.net = net;
+        holder = LazyOptional.of(() -> net);
+    }
+
+    @Override
+    public <T> @NotNull LazyOptional<T> getCapability(Capability<T> capability, @Nullable Direction side) {
+        // 輸送網の要求なら、付与した輸送網を返す。
+        return Transporter.TRANSPORT.orEmpty(capability, holder);
+    }
+
+    @Override
+    public CompoundTag serializeNBT() {
+        return net.toNBT();
+    }
+
+    @Override
+    public void deserializeNBT(CompoundTag tag) {
+        net.load(tag);
+    }
+}
@@ -4,7 +4,9 @@ import com.mojang.logging.LogUtils;
 import com.tntmodders.transporter.block.GuidepostBlock;
 import com.tntmodders.transporter.item.RoadItem;
 import com.tntmodders.transporter.logic.TransportNet;
+import com.tntmodders.transporter.logic.TransportShard;
 import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.item.BlockItem;
 import net.minecraft.world.item.CreativeModeTabs;
 import net.minecraft.world.item.Item;
@@ -12,16 +14,24 @@ import net.minecraft.world.level.Level;
 import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.SoundType;
 import net.minecraft.world.level.block.state.BlockBehaviour;
+import net.minecraft.world.level.chunk.LevelChunk;
 import net.minecraft.world.level.material.Material;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.common.capabilities.Capability;
 import net.minecraftforge.common.capabilities.CapabilityManager;
 import net.minecraftforge.common.capabilities.CapabilityToken;
+import net.minecraftforge.common.capabilities.RegisterCapabilitiesEvent;
 import net.minecraftforge.event.AttachCapabilitiesEvent;
 import net.minecraftforge.event.CreativeModeTabEvent;
+import net.minecraftforge.event.RegisterCommandsEvent;
 import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.level.ChunkEvent;
+import net.minecraftforge.event.level.LevelEvent;
+import net.minecraftforge.event.server.ServerStoppedEvent;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.ModLoadingContext;
 import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.config.ModConfig;
 import net.minecraftforge.fml.javafmlmod.FMLJavaModLoadingContext;
 import net.minecraftforge.registries.DeferredRegister;
 import net.minecraftforge.registries.ForgeRegistries;
@@ -54,8 +64,10 @@ public class Transporter {
     public Transporter() {
         var modEventBus = FMLJavaModLoadingContext.get().getModEventBus();
         modEventBus.addListener(this::addCreative);
+        modEventBus.addListener(this::registerCaps);
         BLOCKS.register(modEventBus);
         ITEMS.register(modEventBus);
+        ModLoadingContext.get().registerConfig(ModConfig.Type.SERVER, TransporterConfig.SPEC);
         // このクラスの@SubscribeEventがついたメソッドを登録する。
         MinecraftForge.EVENT_BUS.register(this);
     }
@@ -67,11 +79,16 @@ public class Transporter {
             event.accept(ROAD);
     }
 
+    private void registerCaps(RegisterCapabilitiesEvent event) {
+        event.register(TransportNet.class);
+    }
+
     @SubscribeEvent
     public void attachCaps(AttachCapabilitiesEvent<Level> event) {
         // サーバー側のそれぞれのディメンションに輸送網の情報を付与する。
         if (!event.getObject().isClientSide) {
-            event.addCapability(new ResourceLocation(MOD_ID, "transport"), new TransportNet());
+            event.addCapability(new ResourceLocation(MOD_ID, "transport"),
+                    new TransportNetProvider(new TransportNet(RoadItem::createStack)));
             LOGGER.debug("Attached capability.");
         }
     }
@@ -80,7 +97,52 @@ public class Transporter {
     public void levelTick(TickEvent.LevelTickEvent event) {
         // 各ディメンションの更新時に輸送網を更新する。
         if (event.phase == TickEvent.Phase.START) {
-            event.level.getCapability(TRANSPORT).ifPresent(net -> net.update(event.level));
+            event.level.getCapability(TRANSPORT).ifPresent(net -> {
+                // 変更された領域に保存先がなければ用意する。
+                if (event.level instanceof ServerLevel serverLevel) TransportShard.loadPending(serverLevel, net);
+                net.update(new LevelWorldAccess(event.level), TransporterConfig.getSettings());
+            });
+        }
+    }
+
+    @SubscribeEvent
+    public void registerCommands(RegisterCommandsEvent event) {
+        TransporterCommand.register(event.getDispatcher());
+    }
+
+    @SubscribeEvent
+    public void levelSave(LevelEvent.Save event) {
+        // 保存の最後に領域ごとの書き込みを待ち、ワールドの他の状態より古い状態が残らないようにする。
+        if (event.getLevel() instanceof ServerLevel level) {
+            TransportShard.awaitWrites();
+            level.getCapability(TRANSPORT).ifPresent(TransportNet::onSaved);
+        }
+    }
+
+    @SubscribeEvent
+    public void serverStopped(ServerStoppedEvent event) {
+        // 次にワールドが読み込まれる前やプロセスの終了前に、輸送網の保存を終わらせる。
+        TransportShard.awaitWrites();
+    }
+
+    @SubscribeEvent
+    public void chunkLoad(ChunkEvent.Load event) {
+        // サーバー側でチャンクが読み込まれたら、その中の輸送網の構成要素を再開させる。
+        if (event.getChunk() instanceof LevelChunk chunk && chunk.getLevel() instanceof ServerLevel level) {
+            var key = chunk.getPos().toLong();
+            level.getCapability(TRANSPORT).ifPresent(net -> {
+                // 領域が初めて読み込まれたら、保存されていた状態を読み込む。
+                TransportShard.load(level, net, TransportShard.getRegionKey(key));
+                net.onChunkLoaded(key);
+            });
+        }
+    }
+
+    @SubscribeEvent
+    public void chunkUnload(ChunkEvent.Unload event) {
+        // サーバー側でチャンクが読み込まれなくなったら、その中の輸送網の構成要素を休止させる。
+        if (event.getChunk() instanceof LevelChunk chunk && !chunk.getLevel().isClientSide) {
+            chunk.getLevel().getCapability(TRANSPORT).ifPresent(net -> net.onChunkUnloaded(chunk.getPos().toLong()));
         }
     }
 }
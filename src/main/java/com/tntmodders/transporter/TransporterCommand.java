@@ -0,0 +1,108 @@
+package com.tntmodders.transporter;
+
+import com.mojang.brigadier.CommandDispatcher;
+import com.tntmodders.transporter.logic.BlockCoord;
+import com.tntmodders.transporter.logic.Road;
+import com.tntmodders.transporter.logic.Subnet;
+import com.tntmodders.transporter.logic.TransportNet;
+import com.tntmodders.transporter.logic.TransportStats;
+import net.minecraft.ChatFormatting;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.Commands;
+import net.minecraft.network.chat.Component;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 輸送網の状態を確認するコマンド。
+ */
+public class TransporterCommand {
+    /**
+     * 一覧に表示する項目の最大数。
+     */
+    private static final int LIMIT = 5;
+
+    public static void register(CommandDispatcher<CommandSourceStack> dispatcher) {
+        dispatcher.register(Commands.literal("transporter")
+                .requires(source -> source.hasPermission(2))
+                .then(Commands.literal("stats").executes(context -> showStats(context.getSource()))));
+    }
+
+    /**
+     * 実行されたディメンションの輸送網の統計を表示する。
+     *
+     * @param source 実行者
+     * @return 輸送網があれば1
+     */
+    private static int showStats(CommandSourceStack source) {
+        var net = source.getLevel().getCapability(Transporter.TRANSPORT).resolve().orElse(null);
+        if (net == null) {
+            source.sendSuccess(Component.literal("No transport network in this dimension.").withStyle(ChatFormatting.RED), false);
+            return 0;
+        }
+        var stats = net.getStats();
+        source.sendSuccess(Component.literal("Tick time (last / average, µs)").withStyle(ChatFormatting.GOLD), false);
+        for (var phase : TransportStats.Phase.values()) {
+            var message = String.format("  %s: %.1f / %.1f", phase.name().toLowerCase(), stats.getLast(phase) / 1000.0, stats.getAverage(phase) / 1000.0);
+            source.sendSuccess(Component.literal(message), false);
+        }
+        source.sendSuccess(Component.literal("Ticks over budget: " + stats.getBudgetExceeded()), false);
+        source.sendSuccess(Component.literal("Freights in flight: " + net.getFreightCount()), false);
+        showQueues(source, net);
+        showSubnets(source, net);
+        source.sendSuccess(Component.literal("Busiest roads (items/s over " + TransportStats.WINDOW / 20 + " s)").withStyle(ChatFormatting.GOLD), false);
+        stats.getRates().entrySet().stream()
+                .sorted(Map.Entry.<Road, Double>comparingByValue().reversed())
+                .limit(LIMIT)
+                .forEach(entry -> {
+                    var road = entry.getKey();
+                    var message = String.format("  %s -> %s: %.2f", format(road.sender()), format(road.receiver()), entry.getValue());
+                    source.sendSuccess(Component.literal(message), false);
+                });
+        source.sendSuccess(Component.literal("Dropped: " + stats.getDroppedFreights() + " freights, " + stats.getDroppedItems() + " items"), false);
+        return 1;
+    }
+
+    /**
+     * 道標で発送を待機している荷物の数を、多い順に表示する。
+     *
+     * @param source 実行者
+     * @param net    輸送網
+     */
+    private static void showQueues(CommandSourceStack source, TransportNet net) {
+        var depths = net.getQueueDepths();
+        var total = depths.values().stream().mapToInt(Integer::intValue).sum();
+        var message = "Queued in guideposts: " + total + " in " + depths.size() + " guideposts";
+        source.sendSuccess(Component.literal(message).withStyle(ChatFormatting.GOLD), false);
+        depths.entrySet().stream()
+                .sorted(Map.Entry.<BlockCoord, Integer>comparingByValue().reversed())
+                .limit(LIMIT)
+                .forEach(entry -> source.sendSuccess(Component.literal("  " + format(entry.getKey()) + ": " + entry.getValue()), false));
+    }
+
+    /**
+     * 道でつながった構成要素のまとまりを、更新にかかる時間が長い順に表示する。
+     *
+     * @param source 実行者
+     * @param net    輸送網
+     */
+    private static void showSubnets(CommandSourceStack source, TransportNet net) {
+        var subnets = net.getSubnets().stream().filter(subnet -> subnet.getSize() > 0).toList();
+        var message = "Networks: " + subnets.size() + " (last / average update, µs)";
+        source.sendSuccess(Component.literal(message).withStyle(ChatFormatting.GOLD), false);
+        subnets.stream()
+                .sorted(Comparator.comparingDouble(Subnet::getAverageNanos).reversed())
+                .limit(LIMIT)
+                .forEach(subnet -> {
+                    var line = String.format("  %s (%d nodes, %d freights): %.1f / %.1f", format(Objects.requireNonNull(subnet.getOrigin())),
+                            subnet.getSize(), subnet.getFreightCount(), subnet.getLastNanos() / 1000.0, subnet.getAverageNanos() / 1000.0);
+                    source.sendSuccess(Component.literal(line), false);
+                });
+    }
+
+    private static String format(BlockCoord coord) {
+        return coord.x() + ", " + coord.y() + ", " + coord.z();
+    }
+}
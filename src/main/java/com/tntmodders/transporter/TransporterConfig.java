@@ -0,0 +1,55 @@
+package com.tntmodders.transporter;
+
+import com.tntmodders.transporter.logic.TransportSettings;
+import net.minecraftforge.common.ForgeConfigSpec;
+
+/**
+ * ワールドごとの設定。
+ */
+public class TransporterConfig {
+    public static final ForgeConfigSpec SPEC;
+    /**
+     * 外部接続から1つの荷物として取り出すアイテムの最大数。
+     */
+    public static final ForgeConfigSpec.IntValue EXTRACT_COUNT;
+    /**
+     * ディメンションごとに、1tickの輸送網の更新に使う時間の上限（マイクロ秒）。
+     */
+    public static final ForgeConfigSpec.IntValue TICK_BUDGET;
+    /**
+     * 道標が1つの道に一度に発送する荷物の最大数。
+     */
+    public static final ForgeConfigSpec.IntValue LANE_CAPACITY;
+    /**
+     * 道標が1つの道に発送してから、次に発送するまでのtick数。
+     */
+    public static final ForgeConfigSpec.IntValue LANE_COOLDOWN;
+
+    static {
+        var builder = new ForgeConfigSpec.Builder();
+        EXTRACT_COUNT = builder
+                .comment("Maximum number of items extracted from an external storage as one freight.")
+                .defineInRange("extract_count", 64, 1, 64);
+        TICK_BUDGET = builder
+                .comment("Maximum time in microseconds spent updating the transport network of one dimension per tick.",
+                        "Remaining work continues on the next tick, oldest first. 0 disables the limit.")
+                .defineInRange("tick_budget", 5000, 0, 1000000);
+        LANE_CAPACITY = builder
+                .comment("Maximum number of freights a guidepost dispatches to one outgoing road at a time.")
+                .defineInRange("lane_capacity", 1, 1, 64);
+        LANE_COOLDOWN = builder
+                .comment("Ticks an outgoing road of a guidepost waits after dispatching before it dispatches again.",
+                        "Each road has its own cooldown, so a guidepost with more roads can dispatch more in total.")
+                .defineInRange("lane_cooldown", 20, 1, 1200);
+        SPEC = builder.build();
+    }
+
+    /**
+     * 現在の設定値を、輸送網の更新に使う形にまとめる。
+     *
+     * @return 設定値
+     */
+    public static TransportSettings getSettings() {
+        return new TransportSettings(EXTRACT_COUNT.get(), TICK_BUDGET.get(), LANE_CAPACITY.get(), LANE_COOLDOWN.get());
+    }
+}
@@ -12,6 +12,7 @@ import net.minecraft.world.entity.LivingEntity;
 import net.minecraft.world.entity.player.Player;
 import net.minecraft.world.item.ItemStack;
 import net.minecraft.world.level.Level;
+import net.minecraft.world.level.LevelReader;
 import net.minecraft.world.level.block.Block;
 import net.minecraft.world.level.block.state.BlockBehaviour;
 import net.minecraft.world.level.block.state.BlockState;
@@ -49,7 +50,7 @@ public class GuidepostBlock extends Block {
         if (!level.isClientSide) {
             level.getCapability(Transporter.TRANSPORT).ifPresent(net ->
                     net.removeFreight(BlockCoord.fromPos(pos)).forEach(freight ->
-                            Containers.dropItemStack(level, pos.getX(), pos.getY(), pos.getZ(), freight.stack)
+                            Containers.dropItemStack(level, pos.getX(), pos.getY(), pos.getZ(), freight.stack.copy())
                     )
             );
         }
@@ -78,7 +79,19 @@ public class GuidepostBlock extends Block {
             if (blockEntity == null || !blockEntity.getCapability(ForgeCapabilities.ITEM_HANDLER, side).isPresent()) {
                 // 外部接続が更新により対象外になっていたら削除する。
                 cap.removeNode(neighbor_coord);
+            } else {
+                // ブロックエンティティが置き換わっているかもしれないので、IItemHandlerを取得し直させる。
+                cap.invalidateHandlers(neighbor_coord);
             }
         });
     }
+
+    @Override
+    public void onNeighborChange(BlockState state, LevelReader level, BlockPos pos, BlockPos neighbor) {
+        super.onNeighborChange(state, level, pos, neighbor);
+        // 隣接するブロックエンティティの中身が変化したら、対応する外部接続を起こす。
+        if (level instanceof Level realLevel && !realLevel.isClientSide) {
+            realLevel.getCapability(Transporter.TRANSPORT).ifPresent(cap -> cap.wake(BlockCoord.fromPos(neighbor)));
+        }
+    }
 }
@@ -39,6 +39,17 @@ public class RoadItem extends Item {
         super(properties);
     }
 
+    /**
+     * 輸送網から削除された道としてドロップさせるアイテムを作る。
+     *
+     * @return 道のアイテム
+     */
+    public static ItemStack createStack() {
+        var stack = new ItemStack(Transporter.ROAD.get());
+        stack.getOrCreateTagElement("road");
+        return stack;
+    }
+
     @Override
     public void onCraftedBy(ItemStack stack, Level level, Player player) {
         stack.getOrCreateTagElement("road");
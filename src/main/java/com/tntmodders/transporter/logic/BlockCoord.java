@@ -3,6 +3,7 @@ package com.tntmodders.transporter.logic;
 import net.minecraft.core.BlockPos;
 import net.minecraft.core.Direction;
 import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.level.ChunkPos;
 
 import javax.annotation.Nullable;
 
@@ -22,6 +23,16 @@ public record BlockCoord(int x, int y, int z) {
         return new BlockCoord(tag.getInt("x"), tag.getInt("y"), tag.getInt("z"));
     }
 
+    /**
+     * {@link #asLong()}で詰めた値から座標を作る。
+     *
+     * @param packed 詰めた値
+     * @return 座標
+     */
+    public static BlockCoord fromLong(long packed) {
+        return new BlockCoord(BlockPos.getX(packed), BlockPos.getY(packed), BlockPos.getZ(packed));
+    }
+
     public BlockPos toBlockPos() {
         return new BlockPos(x, y, z);
     }
@@ -45,6 +56,54 @@ public record BlockCoord(int x, int y, int z) {
         return Direction.fromNormal(to.x - x, to.y - y, to.z - z);
     }
 
+    /**
+     * 座標を1つの値に詰める。
+     *
+     * @return {@link BlockPos#asLong()}と同じ形式の値
+     */
+    public long asLong() {
+        return BlockPos.asLong(x, y, z);
+    }
+
+    /**
+     * この座標を含むチャンクを表す値を返す。
+     *
+     * @return {@link ChunkPos#toLong()}と同じ形式の値
+     */
+    public long getChunkKey() {
+        return ChunkPos.asLong(x >> 4, z >> 4);
+    }
+
+    /**
+     * 詰めた座標を含むチャンクを表す値を返す。
+     *
+     * @param packed {@link #asLong()}で詰めた値
+     * @return {@link ChunkPos#toLong()}と同じ形式の値
+     */
+    public static long getChunkKey(long packed) {
+        return ChunkPos.asLong(BlockPos.getX(packed) >> 4, BlockPos.getZ(packed) >> 4);
+    }
+
+    /**
+     * 詰めた座標を含む領域を表す値を返す。
+     *
+     * @param packed {@link #asLong()}で詰めた値
+     * @return {@link TransportShard#getRegionKey(long)}と同じ形式の値
+     */
+    public static long getRegionKey(long packed) {
+        return TransportShard.getRegionKey(getChunkKey(packed));
+    }
+
+    /**
+     * 指定された方向に隣接する座標を返す。
+     *
+     * @param direction 方向
+     * @return 隣接する座標
+     */
+    public BlockCoord relative(Direction direction) {
+        return new BlockCoord(x + direction.getStepX(), y + direction.getStepY(), z + direction.getStepZ());
+    }
+
     /**
      * この座標との距離の2乗を返す。
      *
@@ -57,4 +116,18 @@ public record BlockCoord(int x, int y, int z) {
         long zDiff = z - other.z;
         return xDiff * xDiff + yDiff * yDiff + zDiff * zDiff;
     }
+
+    /**
+     * 詰めた座標どうしの距離の2乗を返す。
+     *
+     * @param from {@link #asLong()}で詰めた値
+     * @param to   {@link #asLong()}で詰めた値
+     * @return 距離の2乗
+     */
+    public static long distanceSq(long from, long to) {
+        long xDiff = BlockPos.getX(from) - BlockPos.getX(to);
+        long yDiff = BlockPos.getY(from) - BlockPos.getY(to);
+        long zDiff = BlockPos.getZ(from) - BlockPos.getZ(to);
+        return xDiff * xDiff + yDiff * yDiff + zDiff * zDiff;
+    }
 }
@@ -0,0 +1,80 @@
+package com.tntmodders.transporter.logic;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+/**
+ * 保存時に座標を番号で参照するための表。
+ */
+public class CoordTable {
+    /**
+     * 番号の順に並べた、{@link BlockCoord#asLong()}で詰めた座標の一覧。
+     */
+    private final LongArrayList coords = new LongArrayList();
+    /**
+     * 詰めた座標から番号への索引。
+     */
+    private final Long2IntOpenHashMap indices = new Long2IntOpenHashMap();
+
+    public CoordTable() {
+        indices.defaultReturnValue(-1);
+    }
+
+    /**
+     * 保存された表を読み込む。
+     *
+     * @param packed {@link BlockCoord#asLong()}の形式で並べた座標
+     * @return 読み込んだ表
+     */
+    public static CoordTable fromArray(long[] packed) {
+        var result = new CoordTable();
+        for (var value : packed) {
+            result.indexOf(value);
+        }
+        return result;
+    }
+
+    /**
+     * 詰めた座標の番号を返す。表になければ追加する。
+     *
+     * @param packed {@link BlockCoord#asLong()}で詰めた値
+     * @return 座標の番号
+     */
+    public int indexOf(long packed) {
+        var index = indices.get(packed);
+        if (index >= 0) return index;
+        index = coords.size();
+        coords.add(packed);
+        indices.put(packed, index);
+        return index;
+    }
+
+    /**
+     * 番号に対応する座標を返す。
+     *
+     * @param index 座標の番号
+     * @return 対応する座標
+     */
+    public BlockCoord get(int index) {
+        return BlockCoord.fromLong(coords.getLong(index));
+    }
+
+    /**
+     * 番号に対応する座標を、詰めた値のまま返す。
+     *
+     * @param index 座標の番号
+     * @return {@link BlockCoord#asLong()}で詰めた値
+     */
+    public long getKey(int index) {
+        return coords.getLong(index);
+    }
+
+    /**
+     * 保存するため、座標を番号の順に並べる。
+     *
+     * @return {@link BlockCoord#asLong()}の形式で並べた座標
+     */
+    public long[] toArray() {
+        return coords.toLongArray();
+    }
+}
@@ -1,15 +1,25 @@
 package com.tntmodders.transporter.logic;
 
 import com.mojang.logging.LogUtils;
+import net.minecraft.core.Direction;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.ListTag;
 import net.minecraft.nbt.Tag;
-import net.minecraft.world.level.block.entity.BlockEntity;
-import net.minecraftforge.common.capabilities.ForgeCapabilities;
+import net.minecraft.world.item.ItemStack;
+import net.minecraftforge.common.util.LazyOptional;
+import net.minecraftforge.items.IItemHandler;
 import net.minecraftforge.items.ItemHandlerHelper;
 import org.slf4j.Logger;
 
+import javax.annotation.Nullable;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
  * 輸送網上で、隣接する道標と接続された外部インベントリを表す。
@@ -24,84 +34,137 @@ public class ExternalStorage implements Node {
      * 最後に更新処理が実行された時刻。
      */
     private long lastUpdate = 0;
+    /**
+     * 面ごとに取得した対象のIItemHandler。無効になったら取り除かれる。
+     */
+    private final EnumMap<Direction, LazyOptional<IItemHandler>> handlers = new EnumMap<>(Direction.class);
+    /**
+     * 無効になったときの通知を登録したLazyOptional。ブロックエンティティは同じものを返し続けるので、通知は一度だけ登録する。
+     */
+    private final Set<LazyOptional<IItemHandler>> listening = Collections.newSetFromMap(new WeakHashMap<>());
+    /**
+     * 向かっている荷物と待機している荷物のために空けておく、アイテムごとの数。保存せず、読み込み時に荷物から作り直す。
+     * 多くのインベントリはどの面からでも同じスロットに入るので、面は区別しない。
+     */
+    private final HashMap<ItemKey, Integer> reservations = new HashMap<>();
+
+    public static ExternalStorage fromNBT(CompoundTag tag, CoordTable table) {
+        var result = new ExternalStorage();
+        tag.getList("freights", Tag.TAG_COMPOUND)
+                .stream()
+                .map(element -> Freight.fromNBT((CompoundTag) element, table))
+                .forEach(result.freights::add);
+        result.freights.forEach(result::reserve);
+        result.lastUpdate = tag.getLong("last_update");
+        return result;
+    }
 
-    public static ExternalStorage fromNBT(CompoundTag tag) {
+    public static ExternalStorage fromLegacyNBT(CompoundTag tag) {
         var result = new ExternalStorage();
         tag.getList("freights", Tag.TAG_COMPOUND)
                 .stream()
-                .map(element -> Freight.fromNBT((CompoundTag) element))
+                .map(element -> Freight.fromLegacyNBT((CompoundTag) element))
                 .forEach(result.freights::add);
+        result.freights.forEach(result::reserve);
         result.lastUpdate = tag.getLong("last_update");
         return result;
     }
 
     @Override
-    public CompoundTag toNBT() {
+    public CompoundTag toNBT(CoordTable table) {
         var tag = new CompoundTag();
         tag.putString("type", "external_storage");
         var list = new ListTag();
-        freights.stream().map(Freight::toNBT).forEach(list::add);
+        freights.stream().map(freight -> freight.toNBT(table)).forEach(list::add);
         tag.put("freights", list);
         tag.putLong("last_update", lastUpdate);
         return tag;
     }
 
-    // 毎tick実行される更新処理。
     @Override
-    public void update(TransportContext context, BlockCoord coord) {
-        // 前回処理を実行してから1秒以上経過していて、対象のチャンクが読み込まれているなら続ける。
-        if (context.time - lastUpdate < 20 || !context.level.isLoaded(coord.toBlockPos())) return;
-        var blockEntity = context.level.getBlockEntity(coord.toBlockPos());
-        if (blockEntity == null) return;
+    public ExternalStorage snapshot() {
+        var result = new ExternalStorage();
+        result.freights = new ArrayList<>(freights);
+        result.lastUpdate = lastUpdate;
+        return result;
+    }
+
+    // 予約された時刻か、起こされたときに実行される更新処理。
+    @Override
+    public long update(TransportContext context, BlockCoord coord) {
+        // 取り出し先も待機している荷物もなければ、接続が追加されるか荷物を受け取るまで休む。
+        if (freights.isEmpty() && !context.net.hasReceivers(coord)) return IDLE;
+        // 前回処理を実行してから1秒以上経過しているなら続ける。
+        if (context.time - lastUpdate < 20) return lastUpdate + 20;
         // 対象からアイテムを取り出して輸送網に流す。
-        boolean updated = extract(context, coord, blockEntity);
+        var profiler = context.world.getProfiler();
+        profiler.push("extract");
+        long start = System.nanoTime();
+        boolean updated = extract(context, coord);
+        context.stats.add(TransportStats.Phase.EXTRACTION, System.nanoTime() - start);
+        profiler.pop();
+        // 取り出した分だけ対象に空きができたので、受け取れなかった荷物を確認し直させる。
+        if (updated) context.net.onCapacityFreed(coord);
         // 待機している荷物を順に確認し、対象に引き渡す。
-        var iter = freights.iterator();
+        var iter = freights.listIterator();
         while (iter.hasNext()) {
             var freight = iter.next();
-            if (insert(freight, blockEntity, false)) {
+            var remainder = insert(context, freight.stack, coord, freight.getSender(), false);
+            if (remainder.getCount() == freight.stack.getCount()) continue;
+            release(freight, freight.stack.getCount() - remainder.getCount());
+            context.net.markDirty(coord);
+            // 一部しか引き渡せなかったら、残りを荷物として待機させる。
+            if (remainder.isEmpty()) {
                 iter.remove();
-                updated = true;
-                break;
+            } else {
+                iter.set(freight.withStack(remainder));
             }
+            context.invalidate(coord);
+            updated = true;
+            break;
         }
         // 実際に取り出しか引き渡しを実行したら、1秒間休む。
         if (updated) {
             lastUpdate = context.time;
         }
+        // 対象の中身の変化は隣接する道標から起こされるが、通知されない向きもあるので1秒ごとに確認する。
+        return context.time + 20;
     }
 
     /**
      * 対象からアイテムを取り出し、輸送網に流す。
      *
-     * @param context     現在の状態
-     * @param coord       対象の座標
-     * @param blockEntity 対象
+     * @param context 現在の状態
+     * @param coord   対象の座標
      * @return 成功し処理を実行したか
      */
-    private boolean extract(TransportContext context, BlockCoord coord, BlockEntity blockEntity) {
-        // 接続先の一覧を取得する。
-        var receivers = context.net.getReceivers(coord);
+    private boolean extract(TransportContext context, BlockCoord coord) {
         boolean extracted = false;
-        // それぞれの接続先に対し発送を試みる。
-        for (var entry : receivers.entrySet()) {
-            var receiver_coord = entry.getKey();
-            var receiver = entry.getValue();
+        int maxCount = context.settings.extractCount();
+        var route = Route.of(coord);
+        // 外部接続にたどり着けるそれぞれの接続先に対し発送を試みる。
+        var routes = context.net.getRoutes(coord).iterator();
+        while (routes.hasNext()) {
+            var receiverKey = routes.nextLong();
+            var receiver = context.net.getActiveNode(receiverKey);
+            if (receiver == null) continue;
+            var receiver_coord = BlockCoord.fromLong(receiverKey);
             var side = coord.getDirection(receiver_coord);
             if (side == null) LOGGER.warn("Failed to get side. storage: {}, receiver: {}", coord, receiver_coord);
-            // 対象のIItemHandlerを取得し、アイテムを取り出す。
-            extracted |= blockEntity.getCapability(ForgeCapabilities.ITEM_HANDLER, side).map(handler -> {
+            // 対象のIItemHandlerを取得し、アイテムをまとめて取り出す。
+            extracted |= getHandler(context, coord, side).map(handler -> {
                 for (int i = 0; i < handler.getSlots(); i++) {
                     // 候補を取得する。
-                    var candidate = handler.extractItem(i, 1, true);
+                    var candidate = handler.extractItem(i, maxCount, true);
                     if (candidate.isEmpty()) continue;
-                    // 荷物として接続先が受け取れるか確認する。
-                    var freight = new Freight(context, candidate, coord, receiver_coord);
-                    if (!receiver.canReceive(context, freight)) continue;
-                    // 実際に取り出せたら荷物として流す。
-                    var stack = handler.extractItem(i, 1, false);
+                    // 荷物として接続先が受け取れる数を確認する。
+                    var count = getReceivableCount(context, receiver, candidate, route, receiver_coord);
+                    if (count == 0) continue;
+                    // 実際に取り出せたら、そのときだけ荷物を作って流す。
+                    var stack = handler.extractItem(i, count, false);
                     if (stack.isEmpty()) continue;
-                    context.net.addFreight(new Freight(context, stack, coord, receiver_coord));
+                    context.invalidate(coord);
+                    context.net.addFreight(context, new Freight(context, stack, coord, receiver_coord));
                     return true;
                 }
                 return false;
@@ -110,32 +173,163 @@ public class ExternalStorage implements Node {
         return extracted;
     }
 
-    // この荷物を受け取れるか。
+    /**
+     * 接続先が受け取れるまで候補を半分ずつに分け、受け取れる数を返す。
+     *
+     * @param context        現在の状態
+     * @param receiver       接続先
+     * @param candidate      取り出す候補
+     * @param route          対象だけからなる経路
+     * @param receiver_coord 接続先の座標
+     * @return 受け取れる数で、1つも受け取れなければ0
+     */
+    private static int getReceivableCount(TransportContext context, Node receiver, ItemStack candidate, Route route, BlockCoord receiver_coord) {
+        for (int count = candidate.getCount(); count > 0; count /= 2) {
+            var stack = count == candidate.getCount() ? candidate : ItemHandlerHelper.copyStackWithSize(candidate, count);
+            if (receiver.canReceive(context, stack, route, receiver_coord)) return count;
+        }
+        return 0;
+    }
+
+    // このアイテムを受け取れるか。
     @Override
-    public boolean canReceive(TransportContext context, Freight freight) {
+    public boolean canReceive(TransportContext context, ItemStack stack, Route route, BlockCoord coord) {
         // 輸送網の末端なので、対象のチャンクが読み込まれていて、対象に引き渡せるならtrue。
-        var coord = freight.getReceiver();
-        if (!context.level.isLoaded(coord.toBlockPos())) return false;
-        var blockEntity = context.level.getBlockEntity(coord.toBlockPos());
-        return blockEntity != null && insert(freight, blockEntity, true);
+        if (!context.net.isLoaded(coord)) return false;
+        var sender = route.getLast();
+        var side = coord.getDirection(sender);
+        // 同じ更新の間は、同じ面への同じアイテムの試行結果を使い回す。予約がなければ、そのまま引き渡しを試行する。
+        return context.canInsert(coord, side, stack, () -> reservations.isEmpty()
+                ? insert(context, stack, coord, sender, true).isEmpty()
+                : getHandler(context, coord, side).map(handler -> canAccept(handler, stack)).orElse(false));
     }
 
     /**
-     * 荷物を対象に引き渡す。
+     * 予約された数を空けたうえで、アイテムをすべて引き渡せるかを確かめる。
+     * 同じアイテムの予約は既にあるスタックに重ね、残りを空のスロットに入れる。
+     * 他のアイテムの予約は、どの面からのものでもスロットの上限ごとに空のスロットを1つずつ占めるものとみなす。
+     * 面によって入るスロットが分かれているインベントリでは少なく見積もるが、入りきらない荷物を送ることはない。
      *
-     * @param freight     荷物
-     * @param blockEntity 対象
-     * @param simulate    試行ならtrue、実行ならfalse
-     * @return 成功し処理を実行したか
+     * @param handler 対象のIItemHandler
+     * @param stack   引き渡すアイテム
+     * @return 引き渡せるか
      */
-    private boolean insert(Freight freight, BlockEntity blockEntity, boolean simulate) {
+    private boolean canAccept(IItemHandler handler, ItemStack stack) {
+        var kind = ItemKey.ofSlot(stack);
+        int required = stack.getCount();
+        int occupied = 0;
+        for (var entry : reservations.entrySet()) {
+            var key = entry.getKey();
+            if (key.equals(kind)) {
+                required += entry.getValue();
+            } else {
+                occupied += (entry.getValue() + key.count() - 1) / key.count();
+            }
+        }
+        // スロットごとに、必要な数のうち入る数を試行する。
+        var probe = ItemHandlerHelper.copyStackWithSize(stack, required);
+        var empty = new int[handler.getSlots()];
+        int emptyCount = 0;
+        int capacity = 0;
+        for (int i = 0; i < handler.getSlots(); i++) {
+            int accepted = required - handler.insertItem(i, probe, true).getCount();
+            if (accepted <= 0) continue;
+            if (handler.getStackInSlot(i).isEmpty()) {
+                empty[emptyCount++] = accepted;
+            } else {
+                capacity += accepted;
+            }
+        }
+        // 他のアイテムには、多く入る空のスロットから譲るものとみなす。
+        Arrays.sort(empty, 0, emptyCount);
+        for (int i = 0; i < emptyCount - occupied; i++) {
+            capacity += empty[i];
+        }
+        return capacity >= required;
+    }
+
+    /**
+     * 向かってくる荷物のために、対象の空きを予約する。
+     *
+     * @param freight この外部接続が宛先の荷物
+     */
+    public void reserve(Freight freight) {
+        reservations.merge(ItemKey.ofSlot(freight.stack), freight.stack.getCount(), Integer::sum);
+    }
+
+    /**
+     * 引き渡したか、取り除かれた荷物の予約を解除する。
+     *
+     * @param freight この外部接続が宛先の荷物
+     * @param count   解除する数
+     */
+    private void release(Freight freight, int count) {
+        reservations.computeIfPresent(ItemKey.ofSlot(freight.stack), (key, reserved) -> reserved > count ? reserved - count : null);
+    }
+
+    /**
+     * アイテムを対象に引き渡す。
+     *
+     * @param context  現在の状態
+     * @param stack    引き渡すアイテムで、変更されない
+     * @param coord    対象の座標
+     * @param sender   直前の発送元の座標
+     * @param simulate 試行ならtrue、実行ならfalse
+     * @return 引き渡せずに残ったアイテム
+     */
+    private ItemStack insert(TransportContext context, ItemStack stack, BlockCoord coord, BlockCoord sender, boolean simulate) {
         // 対象のIItemHandlerを取得し、アイテムを引き渡す。
-        var coord = freight.getReceiver();
-        var side = coord.getDirection(freight.getSender());
-        if (side == null) LOGGER.warn("Failed to get side. storage: {}, sender: {}", coord, freight.getSender());
-        return blockEntity.getCapability(ForgeCapabilities.ITEM_HANDLER, side)
-                .map(handler -> ItemHandlerHelper.insertItem(handler, freight.stack, simulate).isEmpty())
-                .orElse(false);
+        var side = coord.getDirection(sender);
+        if (side == null) LOGGER.warn("Failed to get side. storage: {}, sender: {}", coord, sender);
+        return getHandler(context, coord, side)
+                .map(handler -> ItemHandlerHelper.insertItem(handler, simulate ? stack : stack.copy(), simulate))
+                .orElse(stack);
+    }
+
+    /**
+     * 対象のIItemHandlerを取得する。一度取得したものは、無効になるまで使い回す。
+     *
+     * @param context 現在の状態
+     * @param coord   対象の座標
+     * @param side    対象の面
+     * @return 対象のIItemHandler
+     */
+    private LazyOptional<IItemHandler> getHandler(TransportContext context, BlockCoord coord, @Nullable Direction side) {
+        if (side != null) {
+            var cached = handlers.get(side);
+            if (cached != null) return cached;
+        }
+        var handler = context.world.getItemHandler(coord, side);
+        if (side != null && handler.isPresent()) {
+            handlers.put(side, handler);
+            // ブロックエンティティが削除されるなどして無効になったら、次は取得し直す。
+            // 通知はブロックエンティティが保持するので、削除された外部接続を残さないよう弱く参照する。
+            if (listening.add(handler)) {
+                var self = new WeakReference<>(this);
+                handler.addListener(invalidated -> {
+                    var storage = self.get();
+                    if (storage != null) storage.onInvalidated(invalidated);
+                });
+            }
+        }
+        return handler;
+    }
+
+    /**
+     * 取得したIItemHandlerが無効になったとき、それを使っていたすべての面で取得し直させる。
+     *
+     * @param invalidated 無効になったIItemHandler
+     */
+    private void onInvalidated(LazyOptional<IItemHandler> invalidated) {
+        handlers.values().removeIf(handler -> handler == invalidated);
+        listening.remove(invalidated);
+    }
+
+    /**
+     * 取得したIItemHandlerをすべて破棄し、次に使うときに取得し直す。
+     */
+    public void invalidateHandlers() {
+        handlers.clear();
     }
 
     // 荷物を受け取る。
@@ -150,6 +344,7 @@ public class ExternalStorage implements Node {
     public ArrayList<Freight> removeFreights() {
         var result = freights;
         freights = new ArrayList<>();
+        result.forEach(freight -> release(freight, freight.stack.getCount()));
         return result;
     }
 }
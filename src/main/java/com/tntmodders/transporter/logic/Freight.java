@@ -1,50 +1,76 @@
 package com.tntmodders.transporter.logic;
 
 import net.minecraft.nbt.CompoundTag;
-import net.minecraft.nbt.ListTag;
 import net.minecraft.nbt.Tag;
-import net.minecraft.world.Containers;
 import net.minecraft.world.item.ItemStack;
-import net.minecraft.world.level.Level;
 
-import java.util.ArrayList;
+import java.util.Objects;
 
 /**
  * 輸送経路と発送時刻を保持する荷物。
  */
 public class Freight {
+    /**
+     * 運んでいるアイテム。保存中の複製と共有されるので変更してはならず、輸送網の外に渡すときは複製する。
+     */
     public final ItemStack stack;
-    private final ArrayList<BlockCoord> route;
+    /**
+     * 発送元から宛先までの経路。次の宛先に発送した荷物と共有する。
+     */
+    private final Route route;
     private final long startedTime;
+    /**
+     * 宛先に到着する時刻。
+     */
+    private final long arrivalTime;
 
     public Freight(TransportContext context, ItemStack stack, BlockCoord sender, BlockCoord receiver) {
         // 輸送経路は必ず2つ以上とする。
-        this(stack, new ArrayList<>(), context.time);
-        route.add(sender);
-        route.add(receiver);
+        this(stack, Route.of(sender).then(receiver), context.time);
     }
 
-    private Freight(ItemStack stack, ArrayList<BlockCoord> route, long startedTime) {
+    private Freight(ItemStack stack, Route route, long startedTime) {
         this.stack = stack;
         this.route = route;
         this.startedTime = startedTime;
+        arrivalTime = startedTime + getTravelTime(BlockCoord.distanceSq(getSenderKey(), getReceiverKey()));
     }
 
-    public static Freight fromNBT(CompoundTag tag) {
-        var route = new ArrayList<BlockCoord>();
-        tag.getList("route", Tag.TAG_COMPOUND)
-                .stream()
-                .map(coord -> BlockCoord.fromNBT((CompoundTag) coord))
-                .forEach(route::add);
+    /**
+     * 1秒に1ブロック進むときの所要時間を返す。
+     *
+     * @param distanceSq 距離の2乗
+     * @return 経過時間の2乗が距離の2乗の400倍以上になる最小のtick数
+     */
+    private static long getTravelTime(long distanceSq) {
+        var target = distanceSq * 20 * 20;
+        // 浮動小数点数の誤差を整数で補正する。
+        var time = (long) Math.ceil(Math.sqrt((double) target));
+        while (time > 0 && (time - 1) * (time - 1) >= target) time--;
+        while (time * time < target) time++;
+        return time;
+    }
+
+    public static Freight fromNBT(CompoundTag tag, CoordTable table) {
+        var route = Objects.requireNonNull(Route.fromIndices(tag.getIntArray("route"), table));
         return new Freight(ItemStack.of(tag.getCompound("stack")), route, tag.getLong("started_time"));
     }
 
-    public CompoundTag toNBT() {
+    /**
+     * 経路を座標のNBTのリストとして保存していた形式から読み込む。
+     *
+     * @param tag 保存されたNBT
+     * @return 読み込んだ荷物
+     */
+    public static Freight fromLegacyNBT(CompoundTag tag) {
+        var route = Objects.requireNonNull(Route.fromLegacyNBT(tag.getList("route", Tag.TAG_COMPOUND)));
+        return new Freight(ItemStack.of(tag.getCompound("stack")), route, tag.getLong("started_time"));
+    }
+
+    public CompoundTag toNBT(CoordTable table) {
         var tag = new CompoundTag();
         tag.put("stack", stack.serializeNBT());
-        var list = new ListTag();
-        route.stream().map(BlockCoord::toNBT).forEach(list::add);
-        tag.put("route", list);
+        tag.putIntArray("route", route.toIndices(table));
         tag.putLong("started_time", startedTime);
         return tag;
     }
@@ -55,7 +81,7 @@ public class Freight {
      * @return 発送元の座標
      */
     public BlockCoord getSender() {
-        return route.get(route.size() - 2);
+        return Objects.requireNonNull(route.getPrevious()).getLast();
     }
 
     /**
@@ -64,40 +90,74 @@ public class Freight {
      * @return 宛先の座標
      */
     public BlockCoord getReceiver() {
-        return route.get(route.size() - 1);
+        return route.getLast();
     }
 
     /**
-     * 宛先に到着したか。
+     * この荷物の発送元を、詰めた値のまま返す。
      *
-     * @param currentTime 現在時刻
-     * @return 到着したか
+     * @return {@link BlockCoord#asLong()}で詰めた値
      */
-    public boolean isArrived(long currentTime) {
-        var elapsed = currentTime - startedTime;
-        return getReceiver().distanceSq(getSender()) * 20 * 20 <= elapsed * elapsed;
+    public long getSenderKey() {
+        return Objects.requireNonNull(route.getPrevious()).getLastKey();
+    }
+
+    /**
+     * この荷物の宛先を、詰めた値のまま返す。
+     *
+     * @return {@link BlockCoord#asLong()}で詰めた値
+     */
+    public long getReceiverKey() {
+        return route.getLastKey();
+    }
+
+    /**
+     * 宛先に到着する時刻を返す。
+     *
+     * @return 到着時刻
+     */
+    public long getArrivalTime() {
+        return arrivalTime;
     }
 
     /**
      * 宛先の座標に、アイテムとしてドロップする。
      *
-     * @param level ドロップするディメンション
+     * @param world ドロップするディメンション
      */
-    public void drop(Level level) {
-        var receiver = getReceiver();
-        Containers.dropItemStack(level, receiver.x(), receiver.y(), receiver.z(), stack);
+    public void drop(WorldAccess world) {
+        world.drop(getReceiver(), stack.copy());
     }
 
     /**
      * この座標を通過したことがあるか。
      *
-     * @param coord 確認する座標
+     * @param coord 確認する詰めた座標
      * @return 輸送経路に座標があるか。
      */
-    public boolean hasPassed(BlockCoord coord) {
+    public boolean hasPassed(long coord) {
         return route.contains(coord);
     }
 
+    /**
+     * 経路と発送時刻が同じで、アイテムだけが異なる荷物を返す。この荷物は変更されない。
+     *
+     * @param stack 新しいアイテム
+     * @return 分割された荷物
+     */
+    public Freight withStack(ItemStack stack) {
+        return new Freight(stack, route, startedTime);
+    }
+
+    /**
+     * 発送元から現在の宛先までの経路を返す。
+     *
+     * @return 経路
+     */
+    public Route getRoute() {
+        return route;
+    }
+
     /**
      * 次の宛先に発送する際の荷物を返す。この荷物は変更されない。
      *
@@ -106,8 +166,6 @@ public class Freight {
      * @return 発送するべき荷物
      */
     public Freight getNext(TransportContext context, BlockCoord receiver) {
-        var new_route = new ArrayList<>(route);
-        new_route.add(receiver);
-        return new Freight(stack, new_route, context.time);
+        return new Freight(stack, route.then(receiver), context.time);
     }
 }
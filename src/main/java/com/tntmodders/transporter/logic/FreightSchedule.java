@@ -0,0 +1,117 @@
+package com.tntmodders.transporter.logic;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectRBTreeMap;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * 運搬中の荷物を到着時刻の順に管理する。
+ */
+public class FreightSchedule {
+    /**
+     * 到着時刻ごとの荷物の一覧。同じ時刻の荷物は追加された順に並ぶ。
+     */
+    private final Long2ObjectRBTreeMap<ArrayDeque<Freight>> queue = new Long2ObjectRBTreeMap<>();
+    /**
+     * 管理している荷物の数。
+     */
+    private int size = 0;
+
+    /**
+     * 荷物を追加する。
+     *
+     * @param freight 追加する荷物
+     */
+    public void add(Freight freight) {
+        var time = freight.getArrivalTime();
+        var freights = queue.get(time);
+        if (freights == null) {
+            freights = new ArrayDeque<>();
+            queue.put(time, freights);
+        }
+        freights.add(freight);
+        size++;
+    }
+
+    /**
+     * 到着している荷物を1つ取り出す。
+     *
+     * @param currentTime 現在時刻
+     * @return 到着時刻が最も早い荷物で、到着しているものがなければnull
+     */
+    @Nullable
+    public Freight poll(long currentTime) {
+        if (queue.isEmpty()) return null;
+        var time = queue.firstLongKey();
+        if (time > currentTime) return null;
+        var freights = queue.get(time);
+        var freight = freights.poll();
+        if (freights.isEmpty()) queue.remove(time);
+        size--;
+        return freight;
+    }
+
+    /**
+     * 最も早く到着する荷物の到着時刻を返す。
+     *
+     * @return 到着時刻で、荷物がなければ{@link Long#MAX_VALUE}
+     */
+    public long getNextTime() {
+        return queue.isEmpty() ? Long.MAX_VALUE : queue.firstLongKey();
+    }
+
+    /**
+     * 条件に合う荷物を取り除く。
+     *
+     * @param filter 取り除く荷物の条件
+     * @return 取り除いた荷物を到着時刻の順に並べた一覧
+     */
+    public ArrayList<Freight> removeIf(Predicate<Freight> filter) {
+        var result = new ArrayList<Freight>();
+        var iter = queue.values().iterator();
+        while (iter.hasNext()) {
+            var freights = iter.next();
+            freights.removeIf(freight -> {
+                if (!filter.test(freight)) return false;
+                result.add(freight);
+                return true;
+            });
+            if (freights.isEmpty()) iter.remove();
+        }
+        size -= result.size();
+        return result;
+    }
+
+    /**
+     * 別の一覧の荷物をすべてこの一覧に移す。
+     *
+     * @param other 移す荷物の一覧で、空になる
+     */
+    public void addAll(FreightSchedule other) {
+        other.stream().forEach(this::add);
+        other.queue.clear();
+        other.size = 0;
+    }
+
+    /**
+     * 管理している荷物の数を返す。
+     *
+     * @return 荷物の数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 管理している荷物を到着時刻の順に返す。
+     *
+     * @return 荷物のStream
+     */
+    public Stream<Freight> stream() {
+        return queue.values().stream().flatMap(ArrayDeque::stream);
+    }
+}
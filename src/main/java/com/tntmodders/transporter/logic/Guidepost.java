@@ -1,86 +1,266 @@
 package com.tntmodders.transporter.logic;
 
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.ListTag;
 import net.minecraft.nbt.Tag;
+import net.minecraft.world.item.ItemStack;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.stream.Stream;
 
 /**
  * 輸送網上の道標。
  */
 public class Guidepost implements Node {
     /**
-     * 発送を待機している荷物の一覧。
+     * 休ませた荷物を確認し直すまでのtick数。
      */
-    private ArrayList<Freight> freights = new ArrayList<>();
+    private static final int PARK_TIMEOUT = 20 * 10;
     /**
-     * 最後に発送処理が実行された時刻。
+     * 発送を待機している荷物を、個数によらないアイテムごとに到着した順に並べた一覧。
+     * 宛先が受け取れるかはアイテムで決まるので、同じアイテムの荷物はまとめて判定する。
      */
-    private long lastUpdate = 0;
+    private LinkedHashMap<ItemKey, ArrayDeque<Freight>> queues = new LinkedHashMap<>();
+    /**
+     * どの宛先にも受け取られなかったアイテムの荷物を、{@link #queues}から移して休ませておく一覧。
+     * 接続が変わるか、宛先の空きが増えるか、一定時間が過ぎるまで確認しない。
+     */
+    private LinkedHashMap<ItemKey, ArrayDeque<Freight>> parked = new LinkedHashMap<>();
+    /**
+     * 最後に荷物を休ませたときの、この道標を含むまとまりの接続の状態を表す値。
+     */
+    private long parkedVersion = 0;
+    /**
+     * 休ませた荷物を、変化がなくても確認し直す時刻。
+     */
+    private long parkedUntil = 0;
+    /**
+     * 直前の発送元の詰めた座標ごとの、待機している荷物の数。休んでいる荷物も含む。
+     */
+    private Long2IntOpenHashMap senders = new Long2IntOpenHashMap();
+    /**
+     * 休んでいるものを含む、待機している荷物の数。
+     */
+    private int size = 0;
+    /**
+     * 道ごとの、次に発送できる時刻。宛先の詰めた座標を鍵とし、すぐに発送できる道は含まない。
+     * 荷物の一覧は道ごとには分けず、道ごとには発送の間隔だけを制限する。宛先は発送するときに選ぶので、
+     * 一覧を道ごとに分けると、その宛先が受け取れなくなったときに他の道から発送できなくなる。
+     * 保存はしないので、読み込んだ直後はすべての道から発送できる。
+     */
+    private Long2LongOpenHashMap lanes = new Long2LongOpenHashMap();
 
-    public static Guidepost fromNBT(CompoundTag tag) {
+    public static Guidepost fromNBT(CompoundTag tag, CoordTable table) {
         var result = new Guidepost();
         tag.getList("freights", Tag.TAG_COMPOUND)
                 .stream()
-                .map(element -> Freight.fromNBT((CompoundTag) element))
-                .forEach(result.freights::add);
-        result.lastUpdate = tag.getLong("last_update");
+                .map(element -> Freight.fromNBT((CompoundTag) element, table))
+                .forEach(result::enqueue);
+        return result;
+    }
+
+    public static Guidepost fromLegacyNBT(CompoundTag tag) {
+        var result = new Guidepost();
+        tag.getList("freights", Tag.TAG_COMPOUND)
+                .stream()
+                .map(element -> Freight.fromLegacyNBT((CompoundTag) element))
+                .forEach(result::enqueue);
         return result;
     }
 
     @Override
-    public CompoundTag toNBT() {
+    public CompoundTag toNBT(CoordTable table) {
         var tag = new CompoundTag();
         tag.putString("type", "guidepost");
         var list = new ListTag();
-        freights.stream().map(Freight::toNBT).forEach(list::add);
+        // 休んでいる荷物も、読み込み後は改めて確認する。
+        Stream.concat(parked.values().stream(), queues.values().stream())
+                .flatMap(ArrayDeque::stream)
+                .map(freight -> freight.toNBT(table))
+                .forEach(list::add);
         tag.put("freights", list);
-        tag.putLong("last_update", lastUpdate);
         return tag;
     }
 
     @Override
-    public void update(TransportContext context, BlockCoord coord) {
-        // 待機している荷物を順に確認し、接続されている宛先に発送する。
-        if (context.time - lastUpdate < 20 || freights.isEmpty()) return;
-        var receivers = context.net.getReceivers(coord);
-        if (receivers.isEmpty()) return;
-        var iter = freights.iterator();
-        while (iter.hasNext()) {
-            var freight = iter.next();
-            for (var entry : receivers.entrySet()) {
-                var receiver_coord = entry.getKey();
-                if (freight.hasPassed(receiver_coord)) continue;
-                var next_freight = freight.getNext(context, receiver_coord);
-                // 宛先が受け取り可能なら発送する。
-                if (entry.getValue().canReceive(context, next_freight)) {
+    public Guidepost snapshot() {
+        var result = new Guidepost();
+        queues.forEach((key, queue) -> result.queues.put(key, new ArrayDeque<>(queue)));
+        parked.forEach((key, queue) -> result.parked.put(key, new ArrayDeque<>(queue)));
+        result.senders = new Long2IntOpenHashMap(senders);
+        result.size = size;
+        return result;
+    }
+
+    /**
+     * 発送を待機している荷物の数を返す。
+     *
+     * @return 荷物の数
+     */
+    public int getQueueSize() {
+        return size;
+    }
+
+    /**
+     * 荷物を待機させ、索引に登録する。
+     *
+     * @param freight 待機させる荷物
+     */
+    private void enqueue(Freight freight) {
+        queues.computeIfAbsent(ItemKey.ofSlot(freight.stack), key -> new ArrayDeque<>()).add(freight);
+        senders.addTo(freight.getSenderKey(), 1);
+        size++;
+    }
+
+    /**
+     * 休ませていた荷物を、すべて発送を待機している一覧に戻す。
+     */
+    public void unpark() {
+        if (parked.isEmpty()) return;
+        // 休んでいた荷物のほうが先に着いているので、同じアイテムの荷物より前に並べる。
+        parked.forEach((key, queue) -> queues.merge(key, queue, (waiting, resumed) -> {
+            resumed.addAll(waiting);
+            return resumed;
+        }));
+        parked = new LinkedHashMap<>();
+    }
+
+    /**
+     * 一覧から取り除いた荷物を、索引からも取り除く。
+     *
+     * @param freight 取り除いた荷物
+     */
+    private void onDequeued(Freight freight) {
+        var sender = freight.getSenderKey();
+        if (senders.addTo(sender, -1) <= 1) senders.remove(sender);
+        size--;
+    }
+
+    @Override
+    public long update(TransportContext context, BlockCoord coord) {
+        // 待機している荷物がなければ、荷物を受け取るまで休む。
+        if (size == 0) return IDLE;
+        // 宛先がなければ、接続が追加されるまで休む。
+        if (!context.net.hasReceivers(coord)) return IDLE;
+        // 外部接続にたどり着ける宛先がなければ、下流の接続の変化は通知されないので1秒後に再び確認する。
+        var routes = context.net.getRoutes(coord);
+        if (routes.isEmpty()) return context.time + 20;
+        // 接続が変わったか一定時間が過ぎたら、休ませていた荷物も確認し直す。
+        if (!parked.isEmpty() && (parkedVersion != context.net.getTopologyVersion(coord) || context.time >= parkedUntil)) unpark();
+        // 休んでいる荷物しかなければ、変化を待つ。
+        if (queues.isEmpty()) return Math.min(context.time + 20, parkedUntil);
+        // 道ごとに、今回発送できる荷物の数を求める。休んでいる道は-1とし、次に発送できる時刻だけを確認する。
+        int capacity = context.settings.laneCapacity();
+        var remaining = new int[routes.size()];
+        int open = 0;
+        long next = context.time + 20;
+        for (int i = 0; i < remaining.length; i++) {
+            var key = routes.getLong(i);
+            var ready = lanes.get(key);
+            if (ready > context.time) {
+                remaining[i] = -1;
+                next = Math.min(next, ready);
+                continue;
+            }
+            if (ready != 0) lanes.remove(key);
+            remaining[i] = capacity;
+            open++;
+        }
+        // アイテムごとに待機している荷物を順に確認し、外部接続に近い宛先から順に発送を試みる。
+        boolean dispatched = false;
+        var entries = queues.entrySet().iterator();
+        while (open > 0 && entries.hasNext()) {
+            var entry = entries.next();
+            var queue = entry.getValue();
+            // すべての道が発送できる状態で確認したときだけ、受け取られなかったアイテムを休ませる。
+            var allOpen = open == remaining.length;
+            var sent = false;
+            // 断られた宛先は、同じアイテムで断られた数以上の荷物では確認しない。
+            // 1つも受け取れない宛先と発送しきった道しかなくなったら、次のアイテムに進む。
+            var refused = new int[remaining.length];
+            Arrays.fill(refused, Integer.MAX_VALUE);
+            int available = open;
+            var iter = queue.iterator();
+            while (available > 0 && iter.hasNext()) {
+                var freight = iter.next();
+                var count = freight.stack.getCount();
+                for (int i = 0; i < remaining.length; i++) {
+                    if (remaining[i] <= 0 || count >= refused[i]) continue;
+                    var receiverKey = routes.getLong(i);
+                    if (freight.hasPassed(receiverKey)) continue;
+                    var receiver = context.net.getActiveNode(receiverKey);
+                    var receiver_coord = receiver != null ? BlockCoord.fromLong(receiverKey) : null;
+                    // 宛先が受け取り可能なら、そのときだけ次の荷物を作って発送する。
+                    if (receiver == null || !receiver.canReceive(context, freight.stack, freight.getRoute(), receiver_coord)) {
+                        refused[i] = count;
+                        if (count == 1) available--;
+                        continue;
+                    }
                     iter.remove();
-                    context.net.addFreight(next_freight);
-                    lastUpdate = context.time;
-                    return;
+                    onDequeued(freight);
+                    context.net.addFreight(context, freight.getNext(context, receiver_coord));
+                    sent = true;
+                    if (--remaining[i] == 0) {
+                        open--;
+                        available--;
+                    }
+                    break;
                 }
             }
+            if (queue.isEmpty()) {
+                entries.remove();
+            } else if (!sent && allOpen) {
+                // どの宛先にも受け取られなかったので、変化があるまで確認しない。
+                entries.remove();
+                parked.merge(entry.getKey(), queue, (waiting, added) -> {
+                    waiting.addAll(added);
+                    return waiting;
+                });
+                parkedVersion = context.net.getTopologyVersion(coord);
+                parkedUntil = context.time + PARK_TIMEOUT;
+            }
+            dispatched |= sent;
+        }
+        // 発送元ごとの荷物の数が減ったので、上流の道標が休ませていた荷物を受け取れるかもしれない。
+        if (dispatched) context.net.onCapacityFreed(coord);
+        // 発送した道は、それぞれ間隔を空けるまで休ませる。
+        for (int i = 0; i < remaining.length; i++) {
+            if (remaining[i] < 0 || remaining[i] == capacity) continue;
+            var ready = context.time + context.settings.laneCooldown();
+            lanes.put(routes.getLong(i), ready);
+            next = Math.min(next, ready);
         }
+        // 宛先の空きは通知されないので、発送できなかった荷物は1秒後に再び確認する。
+        return size == 0 ? IDLE : next;
     }
 
     @Override
-    public boolean canReceive(TransportContext context, Freight freight) {
+    public boolean canReceive(TransportContext context, ItemStack stack, Route route, BlockCoord coord) {
         // 発送元の同じ荷物が待機しておらず、次の宛先があるなら受け取れる。
-        return freights.stream().allMatch(freight1 -> freight1.getSender() != freight.getSender())
-                && context.net.hasNextReceiver(context, freight);
+        return !senders.containsKey(route.getLastKey())
+                && context.net.hasNextReceiver(context, stack, route, coord);
     }
 
     @Override
     public void receive(TransportContext context, Freight freight) {
         // 今後の更新時に次の宛先に発送するため、荷物を保持する。
-        freights.add(freight);
+        enqueue(freight);
     }
 
     @Override
     public ArrayList<Freight> removeFreights() {
-        var result = freights;
-        freights = new ArrayList<>();
+        var result = new ArrayList<Freight>(size);
+        parked.values().forEach(result::addAll);
+        queues.values().forEach(result::addAll);
+        queues = new LinkedHashMap<>();
+        parked = new LinkedHashMap<>();
+        senders = new Long2IntOpenHashMap();
+        size = 0;
         return result;
     }
 }
@@ -0,0 +1,30 @@
+package com.tntmodders.transporter.logic;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.item.Item;
+import net.minecraft.world.item.ItemStack;
+
+import javax.annotation.Nullable;
+
+/**
+ * アイテムの種類、NBT、個数が等しいスタックを同一視するためのキー。
+ *
+ * @param item  アイテムの種類
+ * @param tag   NBT
+ * @param count 個数
+ */
+public record ItemKey(Item item, @Nullable CompoundTag tag, int count) {
+    public static ItemKey of(ItemStack stack) {
+        return new ItemKey(stack.getItem(), stack.getTag(), stack.getCount());
+    }
+
+    /**
+     * 個数の代わりに1スロットに入る上限を持つキーを返す。個数によらず、同じアイテムのスタックは同じキーになる。
+     *
+     * @param stack 対象のスタック
+     * @return アイテムの種類とNBT、スタックの上限からなるキー
+     */
+    public static ItemKey ofSlot(ItemStack stack) {
+        return new ItemKey(stack.getItem(), stack.getTag(), stack.getMaxStackSize());
+    }
+}
@@ -1,6 +1,7 @@
 package com.tntmodders.transporter.logic;
 
 import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.item.ItemStack;
 
 import java.util.ArrayList;
 
@@ -8,29 +9,46 @@ import java.util.ArrayList;
  * 輸送網の構成要素。
  */
 public interface Node {
+    /**
+     * 次の更新が必要ないことを表す時刻。
+     */
+    long IDLE = Long.MAX_VALUE;
+
     /**
      * NBTに保存する。
      *
+     * @param table 荷物の経路の座標を登録する表
      * @return すべてのデータを保存したNBT
      */
-    CompoundTag toNBT();
+    CompoundTag toNBT(CoordTable table);
+
+    /**
+     * 保存のため、現在の状態の複製を作る。荷物は変更されないので共有する。
+     *
+     * @return 別のスレッドでNBTに保存できる複製
+     */
+    Node snapshot();
 
     /**
-     * 毎tick実行される更新処理。
+     * 予約された時刻か、荷物の受け取りや接続の変化で起こされたときに実行される更新処理。
+     * 保存される状態を変えたときは、{@link TransportNet#markDirty(BlockCoord)}で保存を求める。
      *
      * @param context 現在の状態
      * @param coord   対象の座標
+     * @return 次に更新が必要な時刻で、起こされるまで必要なければ{@link #IDLE}
      */
-    void update(TransportContext context, BlockCoord coord);
+    long update(TransportContext context, BlockCoord coord);
 
     /**
-     * この荷物を受け取れるか。
+     * このアイテムを受け取れるか。発送が決まるまで荷物を作らずに済むよう、荷物の内容を分けて受け取る。
      *
      * @param context 現在の状態
-     * @param freight 判定する荷物
-     * @return 荷物を受け取れるか
+     * @param stack   判定するアイテム
+     * @param route   直前の発送元までの経路で、最後の座標が直前の発送元
+     * @param coord   この構成要素の座標
+     * @return 受け取れるか
      */
-    boolean canReceive(TransportContext context, Freight freight);
+    boolean canReceive(TransportContext context, ItemStack stack, Route route, BlockCoord coord);
 
     /**
      * 荷物を受け取る。
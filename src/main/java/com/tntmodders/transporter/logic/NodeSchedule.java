@@ -0,0 +1,111 @@
+package com.tntmodders.transporter.logic;
+
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectRBTreeMap;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+
+/**
+ * 輸送網の構成要素を、次に更新が必要な時刻の順に管理する。
+ * 座標は{@link BlockCoord#asLong()}で詰めた値で扱う。
+ */
+public class NodeSchedule {
+    /**
+     * 予約されていないことを表す時刻。
+     */
+    private static final long NONE = Long.MAX_VALUE;
+    /**
+     * 時刻ごとの更新が必要な座標の一覧。同じ時刻の座標は予約された順に並ぶ。
+     */
+    private final Long2ObjectRBTreeMap<LongLinkedOpenHashSet> queue = new Long2ObjectRBTreeMap<>();
+    /**
+     * 予約されている座標と、その時刻。
+     */
+    private final Long2LongOpenHashMap scheduled = new Long2LongOpenHashMap();
+
+    public NodeSchedule() {
+        scheduled.defaultReturnValue(NONE);
+    }
+
+    /**
+     * 指定時刻に更新するよう予約する。すでにそれより早く予約されていたら何もしない。
+     *
+     * @param coord 対象の詰めた座標
+     * @param time  更新が必要な時刻
+     */
+    public void schedule(long coord, long time) {
+        var current = scheduled.get(coord);
+        if (current != NONE) {
+            if (current <= time) return;
+            remove(coord, current);
+        }
+        scheduled.put(coord, time);
+        var set = queue.get(time);
+        if (set == null) {
+            set = new LongLinkedOpenHashSet();
+            queue.put(time, set);
+        }
+        set.add(coord);
+    }
+
+    /**
+     * 予約を取り消す。
+     *
+     * @param coord 対象の詰めた座標
+     */
+    public void cancel(long coord) {
+        var current = scheduled.remove(coord);
+        if (current != NONE) remove(coord, current);
+    }
+
+    /**
+     * 予約されていれば、同じ時刻の予約を別の予定に移す。
+     *
+     * @param other 移す先の予定
+     * @param coord 対象の詰めた座標
+     */
+    public void moveTo(NodeSchedule other, long coord) {
+        var current = scheduled.remove(coord);
+        if (current == NONE) return;
+        remove(coord, current);
+        other.schedule(coord, current);
+    }
+
+    /**
+     * 最も早い予約の時刻を返す。
+     *
+     * @return 予約の時刻で、予約がなければ{@link Long#MAX_VALUE}
+     */
+    public long getNextTime() {
+        return queue.isEmpty() ? Long.MAX_VALUE : queue.firstLongKey();
+    }
+
+    /**
+     * 現在時刻までに予約された座標があるか。
+     *
+     * @param currentTime 現在時刻
+     * @return {@link #poll()}で取り出せる座標があるか
+     */
+    public boolean isDue(long currentTime) {
+        return getNextTime() <= currentTime;
+    }
+
+    /**
+     * 予約時刻が最も早い座標を1つ取り出す。{@link #isDue(long)}で確かめてから呼ぶ。
+     *
+     * @return 取り出した詰めた座標
+     */
+    public long poll() {
+        var time = queue.firstLongKey();
+        var set = queue.get(time);
+        var coord = set.removeFirstLong();
+        if (set.isEmpty()) queue.remove(time);
+        scheduled.remove(coord);
+        return coord;
+    }
+
+    private void remove(long coord, long time) {
+        var set = queue.get(time);
+        set.remove(coord);
+        if (set.isEmpty()) queue.remove(time);
+    }
+}
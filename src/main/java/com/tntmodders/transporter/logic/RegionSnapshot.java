@@ -0,0 +1,46 @@
+package com.tntmodders.transporter.logic;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+
+import java.util.List;
+
+/**
+ * 保存のために複製した、領域1つ分の輸送網の状態。複製した後は変更されないので、別のスレッドでNBTに変換できる。
+ *
+ * @param coords   {@link BlockCoord#asLong()}で詰めた構成要素の座標
+ * @param nodes    構成要素の複製で、座標と同じ順番
+ * @param roads    発送元が領域内にある道の、発送元と宛先の詰めた座標を交互に並べた配列
+ * @param freights 直前の発送元が領域内にある、道を通っている荷物
+ */
+public record RegionSnapshot(long[] coords, List<Node> nodes, long[] roads, List<Freight> freights) {
+    /**
+     * NBTに保存する。
+     *
+     * @param tag 保存先のNBT
+     * @return 保存先のNBT
+     */
+    public CompoundTag toNBT(CompoundTag tag) {
+        // 座標はすべて表にまとめ、道や経路からは番号で参照する。
+        tag.putInt("version", TransportNet.FORMAT_VERSION);
+        var table = new CoordTable();
+        // 構成要素の番号は、表の先頭からの番号と一致させる。
+        for (var coord : coords) {
+            table.indexOf(coord);
+        }
+        var list = new ListTag();
+        nodes.stream().map(node -> node.toNBT(table)).forEach(list::add);
+        tag.put("nodes", list);
+        var indices = new int[roads.length];
+        for (int i = 0; i < roads.length; i++) {
+            indices[i] = table.indexOf(roads[i]);
+        }
+        tag.putIntArray("roads", indices);
+        list = new ListTag();
+        freights.stream().map(freight -> freight.toNBT(table)).forEach(list::add);
+        tag.put("freights", list);
+        // 表はすべての座標を登録した後に保存する。
+        tag.putLongArray("coords", table.toArray());
+        return tag;
+    }
+}
@@ -17,24 +17,13 @@ public record Road(BlockCoord sender, BlockCoord receiver) {
         if (sender.equals(receiver)) LOGGER.warn("sender equals receiver. pos: {}", sender);
     }
 
-    public static Road fromNBT(CompoundTag tag) {
-        return new Road(BlockCoord.fromNBT(tag.getCompound("sender")), BlockCoord.fromNBT(tag.getCompound("receiver")));
-    }
-
-    public CompoundTag toNBT() {
-        var tag = new CompoundTag();
-        tag.put("sender", sender.toNBT());
-        tag.put("receiver", receiver.toNBT());
-        return tag;
-    }
-
     /**
-     * この座標が発送元や宛先と一致するか。
+     * 発送元と宛先をそれぞれのNBTとして保存していた形式から読み込む。
      *
-     * @param coord 確認する座標
-     * @return この座標が接続に含まれるか
+     * @param tag 保存されたNBT
+     * @return 読み込んだ道
      */
-    public boolean contains(BlockCoord coord) {
-        return coord.equals(sender) || coord.equals(receiver);
+    public static Road fromLegacyNBT(CompoundTag tag) {
+        return new Road(BlockCoord.fromNBT(tag.getCompound("sender")), BlockCoord.fromNBT(tag.getCompound("receiver")));
     }
 }
@@ -0,0 +1,165 @@
+package com.tntmodders.transporter.logic;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+
+import javax.annotation.Nullable;
+
+/**
+ * 荷物の輸送経路を表す不変の連結リスト。座標を追加した経路は、元の経路を共有する。
+ */
+public final class Route {
+    /**
+     * 経路の最後の座標を{@link BlockCoord#asLong()}で詰めた値。
+     */
+    private final long last;
+    /**
+     * 最後の座標を除いた経路。
+     */
+    @Nullable
+    private final Route previous;
+    /**
+     * 経路に含まれる座標の数。
+     */
+    private final int size;
+    /**
+     * 経路に含まれる座標から作った64ビットのブルームフィルタ。
+     */
+    private final long filter;
+
+    private Route(long last, @Nullable Route previous) {
+        this.last = last;
+        this.previous = previous;
+        if (previous == null) {
+            size = 1;
+            filter = getBits(last);
+        } else {
+            size = previous.size + 1;
+            filter = previous.filter | getBits(last);
+        }
+    }
+
+    /**
+     * 1つの座標だけからなる経路を作る。
+     *
+     * @param coord 最初の座標
+     * @return 作られた経路
+     */
+    public static Route of(BlockCoord coord) {
+        return new Route(coord.asLong(), null);
+    }
+
+    /**
+     * 座標の番号の配列から読み込む。
+     *
+     * @param indices 最初の座標から順に並べた番号
+     * @param table   座標の表
+     * @return 読み込んだ経路で、配列が空ならnull
+     */
+    @Nullable
+    public static Route fromIndices(int[] indices, CoordTable table) {
+        Route result = null;
+        for (var index : indices) {
+            var coord = table.get(index);
+            result = result == null ? of(coord) : result.then(coord);
+        }
+        return result;
+    }
+
+    /**
+     * 古い形式のNBTから読み込む。
+     *
+     * @param list 座標のNBTのリスト
+     * @return 読み込んだ経路で、リストが空ならnull
+     */
+    @Nullable
+    public static Route fromLegacyNBT(ListTag list) {
+        Route result = null;
+        for (var element : list) {
+            var coord = BlockCoord.fromNBT((CompoundTag) element);
+            result = result == null ? of(coord) : result.then(coord);
+        }
+        return result;
+    }
+
+    /**
+     * 最初の座標から順に、座標の番号を並べる。
+     *
+     * @param table 座標の表
+     * @return 座標の番号の配列
+     */
+    public int[] toIndices(CoordTable table) {
+        var result = new int[size];
+        var route = this;
+        for (int i = size - 1; i >= 0; i--) {
+            result[i] = table.indexOf(route.last);
+            route = route.previous;
+        }
+        return result;
+    }
+
+    /**
+     * 末尾に座標を追加した経路を返す。この経路は変更されない。
+     *
+     * @param coord 追加する座標
+     * @return 追加された経路
+     */
+    public Route then(BlockCoord coord) {
+        return new Route(coord.asLong(), this);
+    }
+
+    /**
+     * 経路の最後の座標を返す。
+     *
+     * @return 最後の座標
+     */
+    public BlockCoord getLast() {
+        return BlockCoord.fromLong(last);
+    }
+
+    /**
+     * 経路の最後の座標を、詰めた値のまま返す。
+     *
+     * @return {@link BlockCoord#asLong()}で詰めた値
+     */
+    public long getLastKey() {
+        return last;
+    }
+
+    /**
+     * 最後の座標を除いた経路を返す。
+     *
+     * @return 最後の座標を除いた経路で、座標が1つしかなければnull
+     */
+    @Nullable
+    public Route getPrevious() {
+        return previous;
+    }
+
+    /**
+     * 詰めた座標が経路に含まれるか。
+     *
+     * @param packed {@link BlockCoord#asLong()}で詰めた値
+     * @return 含まれるか
+     */
+    public boolean contains(long packed) {
+        // ブルームフィルタにない座標は、経路をたどらずに判定できる。
+        var bits = getBits(packed);
+        if ((filter & bits) != bits) return false;
+        for (var route = this; route != null; route = route.previous) {
+            if (route.last == packed) return true;
+        }
+        return false;
+    }
+
+    /**
+     * ブルームフィルタで座標に対応するビットを返す。
+     *
+     * @param packed {@link BlockCoord#asLong()}で詰めた値
+     * @return 2つのビットが立った値
+     */
+    private static long getBits(long packed) {
+        var hash = packed * 0x9E3779B97F4A7C15L;
+        return (1L << (hash >>> 58)) | (1L << ((hash >>> 52) & 63));
+    }
+}
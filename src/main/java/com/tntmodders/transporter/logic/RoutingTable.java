@@ -0,0 +1,201 @@
+package com.tntmodders.transporter.logic;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongImmutableList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * 道でつながったまとまり1つについて、各構成要素から最も近い外部接続までの距離を管理し、宛先を近い順に並べる。
+ * 座標はすべて{@link BlockCoord#asLong()}で詰めた値で扱う。
+ */
+public class RoutingTable {
+    private static final Comparator<Entry> ORDER = Comparator.comparingDouble(Entry::distance);
+    /**
+     * まとまりに含まれる構成要素の詰めた座標の一覧。
+     */
+    private final LongOpenHashSet members;
+    /**
+     * 輸送網の構成要素の一覧。
+     */
+    private final Long2ObjectMap<Node> nodes;
+    /**
+     * 発送元の座標から、そこから出ている道の宛先の座標への索引。
+     */
+    private final Long2ObjectMap<LongOpenHashSet> outgoing;
+    /**
+     * 宛先の座標から、そこに入っている道の発送元の座標への索引。
+     */
+    private final Long2ObjectMap<LongOpenHashSet> incoming;
+    /**
+     * 外部接続にたどり着ける構成要素と、最も近い外部接続までの道のりの長さ。たどり着けない座標は無限大になる。
+     */
+    private final Long2DoubleOpenHashMap distances = new Long2DoubleOpenHashMap();
+    /**
+     * 構成要素ごとの、外部接続にたどり着ける宛先を近い順に並べた一覧。必要になったときに作る。
+     */
+    private final Long2ObjectOpenHashMap<LongList> routes = new Long2ObjectOpenHashMap<>();
+    /**
+     * 距離を作り直す必要があるか。
+     */
+    private boolean dirty = true;
+
+    public RoutingTable(LongOpenHashSet members, Long2ObjectMap<Node> nodes, Long2ObjectMap<LongOpenHashSet> outgoing, Long2ObjectMap<LongOpenHashSet> incoming) {
+        this.members = members;
+        this.nodes = nodes;
+        this.outgoing = outgoing;
+        this.incoming = incoming;
+        distances.defaultReturnValue(Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * 構成要素が追加されたときの処理。外部接続なら、そこまでの距離を更新する。
+     *
+     * @param coord 追加された座標
+     * @param node  追加された構成要素
+     */
+    public void onNodeAdded(BlockCoord coord, Node node) {
+        if (dirty || !(node instanceof ExternalStorage)) return;
+        var packed = coord.asLong();
+        distances.put(packed, 0.0);
+        var queue = createQueue();
+        queue.add(new Entry(packed, 0.0));
+        relax(queue);
+    }
+
+    /**
+     * 道が追加されたときの処理。発送元とその上流の距離が縮まるなら更新する。
+     *
+     * @param sender   追加された道の発送元の詰めた座標
+     * @param receiver 追加された道の宛先の詰めた座標
+     */
+    public void onRoadAdded(long sender, long receiver) {
+        if (dirty) return;
+        routes.remove(sender);
+        var distance = distances.get(receiver) + getCost(sender, receiver);
+        // 宛先にたどり着けなければ、距離は無限大のままなので更新されない。
+        if (distance >= distances.get(sender)) return;
+        distances.put(sender, distance);
+        var queue = createQueue();
+        queue.add(new Entry(sender, distance));
+        relax(queue);
+    }
+
+    /**
+     * 構成要素や道が削除されたときの処理。距離が伸びるかもしれないので、次に必要になったときに作り直す。
+     */
+    public void invalidate() {
+        dirty = true;
+    }
+
+    /**
+     * この座標から外部接続にたどり着ける宛先を、近い順に返す。
+     *
+     * @param coord 発送元の詰めた座標
+     * @return 宛先の詰めた座標の一覧で、変更できない
+     */
+    public LongList getRoutes(long coord) {
+        if (dirty) rebuild();
+        var result = routes.get(coord);
+        if (result == null) {
+            result = computeRoutes(coord);
+            routes.put(coord, result);
+        }
+        return result;
+    }
+
+    /**
+     * すべての外部接続から道を逆にたどり、距離を作り直す。
+     */
+    private void rebuild() {
+        distances.clear();
+        routes.clear();
+        var queue = createQueue();
+        var iter = members.iterator();
+        while (iter.hasNext()) {
+            var coord = iter.nextLong();
+            if (nodes.get(coord) instanceof ExternalStorage) {
+                distances.put(coord, 0.0);
+                queue.add(new Entry(coord, 0.0));
+            }
+        }
+        relax(queue);
+        dirty = false;
+    }
+
+    /**
+     * 距離が縮まった座標から道を逆にたどり、上流の距離を更新する。
+     *
+     * @param queue 距離が縮まった座標とその距離
+     */
+    private void relax(PriorityQueue<Entry> queue) {
+        while (!queue.isEmpty()) {
+            var entry = queue.poll();
+            var coord = entry.coord();
+            // さらに縮まった後の古い項目は無視する。
+            if (entry.distance() > distances.get(coord)) continue;
+            var senders = incoming.get(coord);
+            if (senders == null) continue;
+            var iter = senders.iterator();
+            while (iter.hasNext()) {
+                var sender = iter.nextLong();
+                // 宛先の距離が変わったので、発送元の宛先の順番を作り直す。
+                routes.remove(sender);
+                var distance = entry.distance() + getCost(sender, coord);
+                if (distance < distances.get(sender)) {
+                    distances.put(sender, distance);
+                    queue.add(new Entry(sender, distance));
+                }
+            }
+        }
+    }
+
+    private LongList computeRoutes(long coord) {
+        var receivers = outgoing.get(coord);
+        if (receivers == null) return LongImmutableList.of();
+        var result = new ArrayList<Entry>(receivers.size());
+        var iter = receivers.iterator();
+        while (iter.hasNext()) {
+            var receiver = iter.nextLong();
+            var distance = distances.get(receiver);
+            if (distance == Double.POSITIVE_INFINITY) continue;
+            result.add(new Entry(receiver, getCost(coord, receiver) + distance));
+        }
+        result.sort(ORDER);
+        var sorted = new long[result.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = result.get(i).coord();
+        }
+        return new LongImmutableList(sorted);
+    }
+
+    private static PriorityQueue<Entry> createQueue() {
+        return new PriorityQueue<>(ORDER);
+    }
+
+    /**
+     * 道を通るのにかかる時間に比例する値を返す。
+     *
+     * @param sender   発送元の座標
+     * @param receiver 宛先の座標
+     * @return 道の長さ
+     */
+    private static double getCost(long sender, long receiver) {
+        return Math.sqrt(BlockCoord.distanceSq(sender, receiver));
+    }
+
+    /**
+     * 座標と、そこまでの道のりの長さの組。
+     *
+     * @param coord    {@link BlockCoord#asLong()}で詰めた座標
+     * @param distance 道のりの長さ
+     */
+    private record Entry(long coord, double distance) {
+    }
+}
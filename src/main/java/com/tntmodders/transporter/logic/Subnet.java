@@ -0,0 +1,100 @@
+package com.tntmodders.transporter.logic;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import javax.annotation.Nullable;
+
+/**
+ * 道でつながった構成要素のまとまり。まとまりごとに荷物と更新の予定を持ち、他のまとまりとは独立して更新される。
+ */
+public class Subnet {
+    /**
+     * まとまりに含まれる構成要素の詰めた座標の一覧。
+     */
+    final LongOpenHashSet members = new LongOpenHashSet();
+    /**
+     * まとまりの中の構成要素に向かって道を通っている荷物の一覧。
+     */
+    final FreightSchedule freights = new FreightSchedule();
+    /**
+     * まとまりの中で更新が必要な構成要素の予定。
+     */
+    final NodeSchedule schedule = new NodeSchedule();
+    /**
+     * まとまりの中の、外部接続への最短経路に基づく宛先の順番。
+     */
+    final RoutingTable routing;
+    /**
+     * まとまりの接続の状態を表す値。構成要素や道、読み込まれているチャンクが変わるたびに新しい値になる。
+     */
+    long version = 0;
+    /**
+     * 直前に更新したときにかかった時間（ナノ秒）。
+     */
+    private long lastNanos = 0;
+    /**
+     * 更新したときにかかった時間の平均（ナノ秒）。更新しなかったtickは含まない。
+     */
+    private double averageNanos = 0;
+
+    Subnet(Long2ObjectMap<Node> nodes, Long2ObjectMap<LongOpenHashSet> outgoing, Long2ObjectMap<LongOpenHashSet> incoming) {
+        routing = new RoutingTable(members, nodes, outgoing, incoming);
+    }
+
+    /**
+     * 現在時刻までに到着する荷物か、更新が必要な構成要素があるか。
+     *
+     * @param time 現在時刻
+     * @return 更新が必要か
+     */
+    public boolean isDue(long time) {
+        return freights.getNextTime() <= time || schedule.getNextTime() <= time;
+    }
+
+    /**
+     * 構成要素も荷物もなく、取り除いてよいか。
+     *
+     * @return 空になったか
+     */
+    public boolean isEmpty() {
+        return members.isEmpty() && freights.size() == 0;
+    }
+
+    /**
+     * 更新にかかった時間を記録する。
+     *
+     * @param nanos かかった時間（ナノ秒）
+     */
+    void record(long nanos) {
+        lastNanos = nanos;
+        averageNanos += (nanos - averageNanos) * TransportStats.SMOOTHING;
+    }
+
+    /**
+     * まとまりに含まれる構成要素の1つを返す。
+     *
+     * @return 構成要素の座標で、空ならnull
+     */
+    @Nullable
+    public BlockCoord getOrigin() {
+        var iter = members.iterator();
+        return iter.hasNext() ? BlockCoord.fromLong(iter.nextLong()) : null;
+    }
+
+    public int getSize() {
+        return members.size();
+    }
+
+    public int getFreightCount() {
+        return freights.size();
+    }
+
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    public double getAverageNanos() {
+        return averageNanos;
+    }
+}
@@ -1,15 +1,35 @@
 package com.tntmodders.transporter.logic;
 
-import net.minecraft.world.level.Level;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.core.Direction;
+import net.minecraft.world.item.ItemStack;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.function.BooleanSupplier;
 
 /**
  * 更新時の状態をまとめる。
  */
 public class TransportContext {
+    /**
+     * 宛先を探す再帰の深さの上限。
+     */
+    private static final int MAX_SEARCH_DEPTH = 64;
+    /**
+     * 経路によらない探索結果の、依存する座標の一覧。
+     */
+    private static final long[] NO_DEPENDENCIES = new long[0];
     /**
      * 輸送網が存在するディメンション。
      */
-    public final Level level;
+    public final WorldAccess world;
+    /**
+     * 設定値。
+     */
+    public final TransportSettings settings;
     /**
      * 輸送網。
      */
@@ -18,10 +38,272 @@ public class TransportContext {
      * 現在時刻。
      */
     public final long time;
+    /**
+     * 処理時間と輸送量の統計。
+     */
+    public final TransportStats stats;
+    /**
+     * この更新中に確認した、各座標から荷物を受け取れる宛先があるかの結果と、その結果が依存する座標。
+     */
+    private final HashMap<SearchKey, Reach> reachability = new HashMap<>();
+    /**
+     * この更新中に試行した、外部インベントリごとの引き渡しの結果。
+     */
+    private final HashMap<BlockCoord, HashMap<InsertKey, Boolean>> insertions = new HashMap<>();
+    /**
+     * 宛先を探している途中か、より外側の探索の結果を待っている座標とアイテムと、結果が決まる再帰の深さ。
+     */
+    private final HashMap<SearchKey, Integer> searching = new HashMap<>();
+    /**
+     * {@link #searching}に加えた順の座標とアイテム。外側の探索の結果が決まったら、内側の分をまとめて取り除く。
+     */
+    private final ArrayList<SearchKey> pending = new ArrayList<>();
+    /**
+     * 宛先を探している途中の座標を、再帰の浅い順に詰めた座標で並べた一覧。一覧の長さが現在の再帰の深さになる。
+     */
+    private final LongArrayList path = new LongArrayList();
+    /**
+     * 現在の探索で、探索より前の経路に含まれていたために確認しなかった宛先と、宛先なしと分かった宛先が依存する座標。
+     */
+    private LongOpenHashSet excluded = new LongOpenHashSet();
+    /**
+     * 現在の探索で見つかった、外部接続までの宛先の一覧。見つかっていなければnull。
+     */
+    @Nullable
+    private long[] found = null;
+    /**
+     * 直前に確認した宛先の探索結果が依存する座標。
+     */
+    private long[] reported = NO_DEPENDENCIES;
+    /**
+     * 現在の探索の内側でたどり着いた、探している途中の座標のうち最も浅いものの深さ。
+     */
+    private int lowest = Integer.MAX_VALUE;
 
-    public TransportContext(Level level, TransportNet net) {
-        this.level = level;
+    public TransportContext(WorldAccess world, TransportSettings settings, TransportNet net) {
+        this.world = world;
+        this.settings = settings;
         this.net = net;
-        time = level.getGameTime();
+        time = world.getGameTime();
+        stats = net.getStats();
+    }
+
+    /**
+     * この座標から荷物を受け取れる宛先があるかを、この更新中に座標とアイテムごとに探す。
+     * 探索は経路に含まれる宛先を通らないので、結果は依存する座標とともに残し、経路が合うときだけ使い回す。
+     * 宛先があれば見つかった宛先のどれも経路に含まれないとき、宛先がなければ確認しなかった宛先がすべて経路に含まれるときに使える。
+     *
+     * @param coord  荷物が到着する座標
+     * @param stack  荷物のアイテム
+     * @param route  直前の発送元までの経路
+     * @param search 実際に宛先を探す処理
+     * @return 宛先があるか
+     */
+    public boolean isReachable(BlockCoord coord, ItemStack stack, Route route, BooleanSupplier search) {
+        var key = new SearchKey(coord, ItemKey.of(stack));
+        var cached = reachability.get(key);
+        if (cached != null && cached.isValid(route)) {
+            reported = cached.dependencies();
+            return cached.result();
+        }
+        reported = NO_DEPENDENCIES;
+        // 結果を保留している座標に戻ってきたら、その経路には宛先がないものとみなす。
+        var entered = searching.get(key);
+        if (entered != null) {
+            lowest = Math.min(lowest, entered);
+            return false;
+        }
+        // 深すぎる場合は、荷物が先の道標に着いたときに改めて確認されるので、宛先があるものとみなす。
+        var depth = path.size();
+        if (depth >= MAX_SEARCH_DEPTH) return true;
+        searching.put(key, depth);
+        var mark = pending.size();
+        pending.add(key);
+        path.add(coord.asLong());
+        var outerLowest = lowest;
+        var outerExcluded = excluded;
+        var outerFound = found;
+        lowest = Integer.MAX_VALUE;
+        excluded = new LongOpenHashSet();
+        found = null;
+        // 再帰の内側は外側の探索に含めて計測する。
+        var outermost = depth == 0;
+        long start = 0;
+        if (outermost) {
+            world.getProfiler().push("route");
+            start = System.nanoTime();
+        }
+        boolean result;
+        LongOpenHashSet dependencies;
+        long[] receivers;
+        try {
+            result = search.getAsBoolean();
+        } catch (RuntimeException e) {
+            resolve(mark, null);
+            lowest = outerLowest;
+            throw e;
+        } finally {
+            path.removeLong(depth);
+            dependencies = excluded;
+            receivers = found;
+            excluded = outerExcluded;
+            found = outerFound;
+            if (outermost) {
+                stats.add(TransportStats.Phase.ROUTING, System.nanoTime() - start);
+                world.getProfiler().pop();
+            }
+        }
+        if (!result && lowest < depth) {
+            // より外側の探索中の座標を仮に宛先なしとして得た結果なので、その探索が宛先なしと決まるまで残さない。
+            searching.put(key, lowest);
+            lowest = Math.min(outerLowest, lowest);
+            reported = dependencies.toLongArray();
+        } else {
+            // 宛先があれば、内側で保留した結果は別の座標から探すと変わりうるので破棄する。
+            // 宛先がなければ、内側で保留した座標からたどれるのもこの探索でたどった範囲だけなので、どれも宛先はない。
+            var reach = new Reach(result, result ? (receivers != null ? receivers : NO_DEPENDENCIES) : dependencies.toLongArray());
+            reachability.put(key, reach);
+            resolve(mark + 1, result ? null : reach);
+            pending.remove(mark);
+            searching.remove(key);
+            lowest = outerLowest;
+            reported = reach.dependencies();
+        }
+        return result;
+    }
+
+    /**
+     * 宛先を探している途中で、経路に含まれるために宛先を確認しなかったことを記録する。
+     * 探している途中の座標なら循環として扱い、それより前の経路の座標なら結果がその経路に依存するものとする。
+     *
+     * @param receiver 確認しなかった宛先の詰めた座標
+     */
+    public void onExcluded(long receiver) {
+        var index = path.indexOf(receiver);
+        if (index >= 0) {
+            lowest = Math.min(lowest, index);
+        } else {
+            excluded.add(receiver);
+        }
+    }
+
+    /**
+     * 宛先を探している途中で、宛先が荷物を受け取れるかを確かめる前に呼ぶ。
+     */
+    public void beginProbe() {
+        reported = NO_DEPENDENCIES;
+    }
+
+    /**
+     * 宛先を探している途中で、宛先が荷物を受け取れるかを確かめた結果を記録する。
+     *
+     * @param receiver 確かめた宛先の詰めた座標
+     * @param received 受け取れるか
+     */
+    public void endProbe(long receiver, boolean received) {
+        if (!received) {
+            excluded.addAll(LongArrayList.wrap(reported));
+            return;
+        }
+        var result = new long[reported.length + 1];
+        result[0] = receiver;
+        System.arraycopy(reported, 0, result, 1, reported.length);
+        found = result;
+    }
+
+    /**
+     * 結果を保留していた座標とアイテムのうち、指定した位置より後に加えたものを取り除く。
+     *
+     * @param from   取り除き始める位置
+     * @param result 残す結果で、残さないならnull
+     */
+    private void resolve(int from, @Nullable Reach result) {
+        var keys = pending.subList(from, pending.size());
+        for (var key : keys) {
+            searching.remove(key);
+            if (result != null) reachability.put(key, result);
+        }
+        keys.clear();
+    }
+
+    /**
+     * 外部インベントリに荷物を引き渡せるかを、この更新中に一度だけ試行する。
+     *
+     * @param coord    外部接続の座標
+     * @param side     引き渡す面
+     * @param stack    引き渡すアイテム
+     * @param simulate 実際に試行する処理
+     * @return 引き渡せるか
+     */
+    public boolean canInsert(BlockCoord coord, @Nullable Direction side, ItemStack stack, BooleanSupplier simulate) {
+        var results = insertions.computeIfAbsent(coord, key -> new HashMap<>());
+        var key = new InsertKey(side, ItemKey.of(stack));
+        var cached = results.get(key);
+        if (cached != null) return cached;
+        var result = simulate.getAsBoolean();
+        results.put(key, result);
+        return result;
+    }
+
+    /**
+     * 外部インベントリに実際に引き渡すか取り出したとき、その試行結果と宛先の探索結果を破棄する。
+     *
+     * @param coord 外部接続の座標
+     */
+    public void invalidate(BlockCoord coord) {
+        insertions.remove(coord);
+        reachability.clear();
+    }
+
+    /**
+     * 外部接続の空きを予約したとき、その引き渡しの試行結果と、その外部接続にたどり着いた探索結果を破棄する。
+     * 空きが減っただけなので、宛先がないという結果はそのまま使える。
+     *
+     * @param coord 外部接続の座標
+     */
+    public void invalidateReserved(BlockCoord coord) {
+        insertions.remove(coord);
+        var key = coord.asLong();
+        reachability.values().removeIf(reach -> reach.result() && reach.dependsOn(key));
+    }
+
+    private record SearchKey(BlockCoord coord, ItemKey item) {
+    }
+
+    /**
+     * 宛先を探した結果。
+     *
+     * @param result       宛先があるか
+     * @param dependencies 宛先があれば見つかった宛先の一覧、なければ経路に含まれていたために確認しなかった宛先の一覧
+     */
+    private record Reach(boolean result, long[] dependencies) {
+        /**
+         * この経路で届いた荷物にも、この結果を使えるか。
+         *
+         * @param route 直前の発送元までの経路
+         * @return 使えるか
+         */
+        boolean isValid(Route route) {
+            for (var dependency : dependencies) {
+                if (route.contains(dependency) == result) return false;
+            }
+            return true;
+        }
+
+        /**
+         * この座標に依存する結果か。
+         *
+         * @param coord 詰めた座標
+         * @return 依存する座標に含まれるか
+         */
+        boolean dependsOn(long coord) {
+            for (var dependency : dependencies) {
+                if (dependency == coord) return true;
+            }
+            return false;
+        }
+    }
+
+    private record InsertKey(@Nullable Direction side, ItemKey item) {
     }
 }
@@ -1,97 +1,409 @@
 package com.tntmodders.transporter.logic;
 
 import com.mojang.logging.LogUtils;
-import com.tntmodders.transporter.Transporter;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongImmutableList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import net.minecraft.core.Direction;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.ListTag;
 import net.minecraft.nbt.Tag;
 import net.minecraft.world.item.ItemStack;
-import net.minecraft.world.level.Level;
-import net.minecraftforge.common.capabilities.AutoRegisterCapability;
-import net.minecraftforge.common.capabilities.Capability;
-import net.minecraftforge.common.capabilities.ICapabilitySerializable;
-import net.minecraftforge.common.util.LazyOptional;
-import org.jetbrains.annotations.NotNull;
+import net.minecraft.world.level.saveddata.SavedData;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
  * 各ディメンションに付与され、輸送網の情報を管理する。
+ * 内部では座標を{@link BlockCoord#asLong()}で詰めた値で扱い、外部とのやり取りでだけ{@link BlockCoord}に変換する。
+ * ゲームの登録に依存しないので、ディメンションへの付与は外側で行う。
  */
-@AutoRegisterCapability
-public class TransportNet implements ICapabilitySerializable<CompoundTag> {
+public class TransportNet {
     private static final Logger LOGGER = LogUtils.getLogger();
-    private final LazyOptional<TransportNet> holder = LazyOptional.of(() -> this);
     /**
-     * 輸送網の構成要素の一覧。
+     * 保存形式の版。版のない古い形式と、領域ごとに分けずに保存していた版2も読み込める。
      */
-    private final HashMap<BlockCoord, Node> nodes = new HashMap<>();
+    static final int FORMAT_VERSION = 3;
     /**
-     * 輸送網に存在する道の一覧。
+     * 領域ごとに分けずに保存していた版。
      */
-    private final HashSet<Road> roads = new HashSet<>();
+    private static final int SINGLE_FILE_VERSION = 2;
     /**
-     * 道を通っている荷物の一覧。
+     * 詰めた座標ごとの、輸送網の構成要素の一覧。
      */
-    private final ArrayList<Freight> freights = new ArrayList<>();
+    private final Long2ObjectOpenHashMap<Node> nodes = new Long2ObjectOpenHashMap<>();
+    /**
+     * 発送元の座標から、そこから出ている道の宛先の座標への索引。輸送網に存在する道の一覧を兼ねる。
+     */
+    private final Long2ObjectOpenHashMap<LongOpenHashSet> outgoing = new Long2ObjectOpenHashMap<>();
+    /**
+     * 宛先の座標から、そこに入っている道の発送元の座標への索引。
+     */
+    private final Long2ObjectOpenHashMap<LongOpenHashSet> incoming = new Long2ObjectOpenHashMap<>();
+    /**
+     * 道でつながった構成要素のまとまりの一覧。空になったまとまりは次の更新で取り除く。
+     */
+    private final ArrayList<Subnet> subnets = new ArrayList<>();
+    /**
+     * 構成要素の詰めた座標から、それを含むまとまりへの索引。
+     */
+    private final Long2ObjectOpenHashMap<Subnet> subnetOf = new Long2ObjectOpenHashMap<>();
+    /**
+     * 宛先の構成要素がまだ読み込まれていないなど、どのまとまりにも属さない道を通っている荷物の一覧。
+     */
+    private FreightSchedule freights = new FreightSchedule();
+    /**
+     * 最後に更新された時刻。
+     */
+    private long time = 0;
+    /**
+     * まとまりの接続の状態を表す値を割り当てるために増やしていく値。割り当てた値は再び使わない。
+     */
+    private long topologyVersion = 0;
+    /**
+     * チャンクごとの、その中にある構成要素の座標の一覧。
+     */
+    private final Long2ObjectOpenHashMap<LongOpenHashSet> chunkNodes = new Long2ObjectOpenHashMap<>();
+    /**
+     * 読み込まれているチャンクの一覧。
+     */
+    private final LongOpenHashSet loadedChunks = new LongOpenHashSet();
+    /**
+     * 読み込まれていないチャンクに到着し、読み込まれるまで待機している荷物の一覧。
+     */
+    private final Long2ObjectOpenHashMap<ArrayList<Freight>> parkedFreights = new Long2ObjectOpenHashMap<>();
+    /**
+     * 宛先の詰めた座標ごとの、まだ宛先に渡されていない荷物の一覧。待機している荷物も含む。
+     */
+    private final Long2ObjectOpenHashMap<ArrayList<Freight>> inTransit = new Long2ObjectOpenHashMap<>();
+    /**
+     * 領域ごとの保存先。
+     */
+    private final Long2ObjectOpenHashMap<SavedData> shards = new Long2ObjectOpenHashMap<>();
+    /**
+     * 変更されたが、保存先がまだ登録されていない領域の一覧。
+     */
+    private final LongOpenHashSet pendingRegions = new LongOpenHashSet();
+    /**
+     * 保存のためにまとめて複製した、領域ごとの状態。変更された領域は続けて保存されるので、最初の領域を保存するときにまとめて作る。
+     */
+    private final Long2ObjectOpenHashMap<RegionSnapshot> snapshots = new Long2ObjectOpenHashMap<>();
+    /**
+     * 状態が変わるたびに増える値。
+     */
+    private long changes = 0;
+    /**
+     * {@link #snapshots}を作ったときの{@link #changes}の値。
+     */
+    private long snapshotChanges = -1;
+    /**
+     * すべての領域の状態をまとめて読み込んだか。
+     */
+    private boolean hasAllRegions = false;
+    /**
+     * まとめて読み込んだ状態を、領域ごとの保存先に移し終えていないか。
+     * 移し終えるまでは、まとめて保存した状態を正しいものとし、領域ごとの保存先に残っていた状態は読み込まない。
+     */
+    private boolean migrating = false;
+    /**
+     * 処理時間と輸送量の統計。
+     */
+    private final TransportStats stats = new TransportStats();
+    /**
+     * 削除された道としてドロップさせるアイテムを作る処理。
+     */
+    private final Supplier<ItemStack> roadStack;
 
-    @Override
-    public <T> @NotNull LazyOptional<T> getCapability(Capability<T> capability, @Nullable Direction side) {
-        // 輸送網の要求なら、このインスタンスを返す。
-        return Transporter.TRANSPORT.orEmpty(capability, holder);
+    public TransportNet(Supplier<ItemStack> roadStack) {
+        this.roadStack = roadStack;
     }
 
-    @Override
-    public CompoundTag serializeNBT() {
-        // セーブデータの保存に合わせて、輸送網の状態を保存する。
+    /**
+     * ディメンションのセーブデータに保存する。
+     *
+     * @return 保存するNBT
+     */
+    public CompoundTag toNBT() {
+        if (migrating) {
+            // 領域ごとの書き込みが終わる前に停止しても失われないよう、移し終えるまではすべての状態をまとめて保存する。
+            var all = new LongArrayList(nodes.keySet());
+            var inFlight = Stream.concat(freights.stream(), subnets.stream().flatMap(subnet -> subnet.freights.stream()));
+            var tag = snapshot(all, Stream.concat(inFlight, parkedFreights.values().stream().flatMap(ArrayList::stream)).toList())
+                    .toNBT(new CompoundTag());
+            tag.putInt("version", SINGLE_FILE_VERSION);
+            return tag;
+        }
+        // 状態は領域ごとに保存するので、ここでは版だけを保存する。
         var tag = new CompoundTag();
-        var list = new ListTag();
-        nodes.entrySet().stream().map(entry -> {
-            var node = entry.getValue().toNBT();
-            node.put("coord", entry.getKey().toNBT());
-            return node;
-        }).forEach(list::add);
-        tag.put("nodes", list);
-        list = new ListTag();
-        roads.stream().map(Road::toNBT).forEach(list::add);
-        tag.put("roads", list);
-        list = new ListTag();
-        freights.stream().map(Freight::toNBT).forEach(list::add);
-        tag.put("freights", list);
+        tag.putInt("version", FORMAT_VERSION);
         return tag;
     }
 
-    @Override
-    public void deserializeNBT(CompoundTag tag) {
+    /**
+     * ディメンションのセーブデータから読み込む。
+     *
+     * @param tag 保存されたNBT
+     */
+    public void load(CompoundTag tag) {
         // セーブデータの読み込みに合わせて、輸送網の状態を読み込む。
         nodes.clear();
+        outgoing.clear();
+        incoming.clear();
+        subnets.clear();
+        subnetOf.clear();
+        freights = new FreightSchedule();
+        parkedFreights.clear();
+        inTransit.clear();
+        chunkNodes.clear();
+        if (tag.getInt("version") >= FORMAT_VERSION) return;
+        // 領域ごとに保存するようになる前の状態は、すべての領域をここで読み込み、次の保存で領域ごとに移す。
+        if (tag.contains("version")) {
+            readNBT(tag);
+        } else {
+            readLegacyNBT(tag);
+        }
+        hasAllRegions = true;
+        migrating = true;
+    }
+
+    /**
+     * ディメンションの保存が終わり、領域ごとの書き込みもすべて終わったときの処理。
+     * まとめて読み込んだ状態をすべての領域に書き込み終えていたら、次の保存からは版だけを保存する。
+     */
+    public void onSaved() {
+        if (!migrating || !pendingRegions.isEmpty()) return;
+        for (var shard : shards.values()) {
+            if (shard.isDirty()) return;
+        }
+        migrating = false;
+    }
+
+    /**
+     * 領域の保存先を登録し、保存されていた状態を読み込む。
+     *
+     * @param region 領域を表す値
+     * @param shard  領域の保存先
+     * @param tag    保存されたNBTで、まだ保存されていなければnull
+     */
+    public void loadRegion(long region, SavedData shard, @Nullable CompoundTag tag) {
+        shards.put(region, shard);
+        if (migrating) {
+            // 移し終える前に停止したときの書きかけの状態は読み込まず、まとめて読み込んだ状態で上書きする。
+            shard.setDirty();
+        } else if (tag != null) {
+            readNBT(tag);
+            // 読み込んだだけなら保存し直す必要はない。
+            shard.setDirty(false);
+        }
+        if (pendingRegions.remove(region)) shard.setDirty();
+        // 他の領域が保存された後に削除された構成要素への道を取り除く。発送元と宛先を交互に並べる。
+        var stale = new LongArrayList();
+        for (var entry : outgoing.long2ObjectEntrySet()) {
+            var sender = entry.getLongKey();
+            var iter = entry.getValue().iterator();
+            while (iter.hasNext()) {
+                var receiver = iter.nextLong();
+                if (BlockCoord.getRegionKey(sender) != region && BlockCoord.getRegionKey(receiver) != region) continue;
+                if (isKnown(sender) && isKnown(receiver)) continue;
+                stale.add(sender);
+                stale.add(receiver);
+            }
+        }
+        for (int i = 0; i + 1 < stale.size(); i += 2) {
+            removeRoad(stale.getLong(i), stale.getLong(i + 1));
+        }
+    }
+
+    /**
+     * 保存のため、領域の状態を複製する。道は発送元の領域に、荷物は直前の発送元の領域に含める。
+     * 変更された領域は続けて保存されるので、最初に呼ばれたときに、保存が必要なすべての領域の複製をまとめて作っておく。
+     *
+     * @param region 領域を表す値
+     * @return 別のスレッドでNBTに保存できる複製
+     */
+    public RegionSnapshot snapshotRegion(long region) {
+        if (snapshotChanges != changes || !snapshots.containsKey(region)) {
+            var regions = new LongOpenHashSet();
+            regions.add(region);
+            for (var entry : shards.long2ObjectEntrySet()) {
+                if (entry.getValue().isDirty()) regions.add(entry.getLongKey());
+            }
+            snapshotRegions(regions);
+        }
+        return snapshots.remove(region);
+    }
+
+    /**
+     * 領域の状態を、構成要素と荷物を1度ずつたどって複製する。
+     *
+     * @param regions 複製する領域の一覧
+     */
+    private void snapshotRegions(LongOpenHashSet regions) {
+        // 重いNBTへの変換は後で行い、ここでは一覧を複製するだけにする。
+        var coords = new Long2ObjectOpenHashMap<LongArrayList>();
+        for (var entry : chunkNodes.long2ObjectEntrySet()) {
+            var region = TransportShard.getRegionKey(entry.getLongKey());
+            if (regions.contains(region)) coords.computeIfAbsent(region, key -> new LongArrayList()).addAll(entry.getValue());
+        }
+        // 待機している荷物は、読み込み後に到着済みの荷物として扱う。
+        var regionFreights = new Long2ObjectOpenHashMap<ArrayList<Freight>>();
+        var inFlight = Stream.concat(freights.stream(), subnets.stream().flatMap(subnet -> subnet.freights.stream()));
+        Stream.concat(inFlight, parkedFreights.values().stream().flatMap(ArrayList::stream)).forEach(freight -> {
+            var region = BlockCoord.getRegionKey(freight.getSenderKey());
+            if (regions.contains(region)) regionFreights.computeIfAbsent(region, key -> new ArrayList<>()).add(freight);
+        });
+        snapshots.clear();
+        var iter = regions.iterator();
+        while (iter.hasNext()) {
+            var region = iter.nextLong();
+            snapshots.put(region, snapshot(coords.getOrDefault(region, new LongArrayList()), regionFreights.getOrDefault(region, new ArrayList<>())));
+        }
+        snapshotChanges = changes;
+    }
+
+    /**
+     * 構成要素と、そこから出ている道と荷物を複製する。
+     *
+     * @param coords   構成要素の詰めた座標の一覧
+     * @param freights 含める荷物の一覧
+     * @return 複製した状態
+     */
+    private RegionSnapshot snapshot(LongArrayList coords, List<Freight> freights) {
+        var copies = new ArrayList<Node>(coords.size());
+        var roads = new LongArrayList();
+        for (int i = 0; i < coords.size(); i++) {
+            var coord = coords.getLong(i);
+            copies.add(nodes.get(coord).snapshot());
+            var receivers = outgoing.get(coord);
+            if (receivers == null) continue;
+            var iter = receivers.iterator();
+            while (iter.hasNext()) {
+                roads.add(coord);
+                roads.add(iter.nextLong());
+            }
+        }
+        return new RegionSnapshot(coords.toLongArray(), copies, roads.toLongArray(), freights);
+    }
+
+    /**
+     * この領域の保存先が登録されているか。
+     *
+     * @param region 領域を表す値
+     * @return 登録されているか
+     */
+    public boolean hasShard(long region) {
+        return shards.containsKey(region);
+    }
+
+    /**
+     * 変更されたが、保存先が登録されていない領域の一覧を返す。
+     *
+     * @return 領域を表す値の一覧
+     */
+    public LongList getPendingRegions() {
+        return new LongArrayList(pendingRegions);
+    }
+
+    /**
+     * 構成要素の保存される状態が変わったとき、その領域を保存が必要なものとして記録する。
+     *
+     * @param coord 変更された構成要素の座標
+     */
+    public void markDirty(BlockCoord coord) {
+        markDirty(coord.asLong());
+    }
+
+    /**
+     * この座標を含む領域を、保存が必要なものとして記録する。
+     *
+     * @param coord 変更された詰めた座標
+     */
+    private void markDirty(long coord) {
+        changes++;
+        var region = BlockCoord.getRegionKey(coord);
+        var shard = shards.get(region);
+        if (shard != null) {
+            shard.setDirty();
+        } else {
+            pendingRegions.add(region);
+        }
+    }
+
+    /**
+     * この座標の状態が分かっていて、構成要素があるか、その領域がまだ読み込まれていないか。
+     *
+     * @param coord 確認する詰めた座標
+     * @return 構成要素があるか、まだ分からないならtrue
+     */
+    private boolean isKnown(long coord) {
+        return nodes.containsKey(coord) || !hasAllRegions && !shards.containsKey(BlockCoord.getRegionKey(coord));
+    }
+
+    /**
+     * 座標の表を使う形式から読み込む。
+     *
+     * @param tag 保存されたNBT
+     */
+    private void readNBT(CompoundTag tag) {
+        var table = CoordTable.fromArray(tag.getLongArray("coords"));
+        var list = tag.getList("nodes", Tag.TAG_COMPOUND);
+        for (int i = 0; i < list.size(); i++) {
+            var node = list.getCompound(i);
+            var type = node.getString("type");
+            if (type.equals("guidepost")) {
+                putNode(table.getKey(i), Guidepost.fromNBT(node, table));
+            } else if (type.equals("external_storage")) {
+                putNode(table.getKey(i), ExternalStorage.fromNBT(node, table));
+            } else {
+                LOGGER.warn("Unknown type of node: " + type);
+            }
+        }
+        var indices = tag.getIntArray("roads");
+        for (int i = 0; i + 1 < indices.length; i += 2) {
+            putRoad(table.getKey(indices[i]), table.getKey(indices[i + 1]));
+        }
+        tag.getList("freights", Tag.TAG_COMPOUND)
+                .stream()
+                .map(element -> Freight.fromNBT((CompoundTag) element, table))
+                .forEach(this::putFreight);
+    }
+
+    /**
+     * 座標をそれぞれNBTとして保存していた形式から読み込む。
+     *
+     * @param tag 保存されたNBT
+     */
+    private void readLegacyNBT(CompoundTag tag) {
         tag.getList("nodes", Tag.TAG_COMPOUND).forEach(element -> {
             var node = (CompoundTag) element;
             var type = node.getString("type");
-            var coord = BlockCoord.fromNBT(node.getCompound("coord"));
+            var coord = BlockCoord.fromNBT(node.getCompound("coord")).asLong();
             if (type.equals("guidepost")) {
-                nodes.put(coord, Guidepost.fromNBT(node));
+                putNode(coord, Guidepost.fromLegacyNBT(node));
             } else if (type.equals("external_storage")) {
-                nodes.put(coord, ExternalStorage.fromNBT(node));
+                putNode(coord, ExternalStorage.fromLegacyNBT(node));
             } else {
                 LOGGER.warn("Unknown type of node: " + type);
             }
         });
-        roads.clear();
         tag.getList("roads", Tag.TAG_COMPOUND)
                 .stream()
-                .map(element -> Road.fromNBT((CompoundTag) element))
-                .forEach(roads::add);
-        freights.clear();
+                .map(element -> Road.fromLegacyNBT((CompoundTag) element))
+                .forEach(road -> putRoad(road.sender().asLong(), road.receiver().asLong()));
         tag.getList("freights", Tag.TAG_COMPOUND)
                 .stream()
-                .map(element -> Freight.fromNBT((CompoundTag) element))
-                .forEach(freights::add);
+                .map(element -> Freight.fromLegacyNBT((CompoundTag) element))
+                .forEach(this::putFreight);
     }
 
     /**
@@ -101,9 +413,10 @@ public class TransportNet implements ICapabilitySerializable<CompoundTag> {
      * @param node  追加する構成要素
      */
     public void addNode(BlockCoord coord, Node node) {
-        var existing = nodes.get(coord);
+        var key = coord.asLong();
+        var existing = nodes.get(key);
         if (existing == null) {
-            nodes.put(coord, node);
+            putNode(key, node);
         } else if (existing.getClass() != node.getClass()) {
             LOGGER.warn("There is already another kind of node.");
         }
@@ -117,37 +430,58 @@ public class TransportNet implements ICapabilitySerializable<CompoundTag> {
      */
     public ArrayList<ItemStack> removeNode(BlockCoord coord) {
         var result = new ArrayList<ItemStack>();
-        // 接続を削除し、その数だけ道をドロップする。
-        var roadStack = new ItemStack(Transporter.ROAD.get());
-        roadStack.getOrCreateTagElement("road");
-        roads.removeIf(road -> {
-            if (road.contains(coord)) {
-                result.add(roadStack);
-                return true;
-            } else {
-                return false;
+        var key = coord.asLong();
+        // 隣接するブロックの更新のたびに呼ばれるので、何もなければ保存や経路の再計算を引き起こさない。
+        if (!nodes.containsKey(key) && !isConnected(key)) return result;
+        // 接続を削除し、その数だけ道をドロップする。つながっていた構成要素は、まとまりが分かれたか確かめる。
+        var neighbors = new LongArrayList();
+        var receivers = outgoing.remove(key);
+        if (receivers != null) {
+            var iter = receivers.iterator();
+            while (iter.hasNext()) {
+                var receiver = iter.nextLong();
+                unlink(incoming, receiver, key);
+                neighbors.add(receiver);
+                result.add(createRoadStack());
             }
-        });
-        var node = nodes.remove(coord);
+        }
+        var senders = incoming.remove(key);
+        if (senders != null) {
+            var iter = senders.iterator();
+            while (iter.hasNext()) {
+                var sender = iter.nextLong();
+                // 自身への接続は上で削除済み。
+                if (sender == key) continue;
+                unlink(outgoing, sender, key);
+                markDirty(sender);
+                neighbors.add(sender);
+                result.add(createRoadStack());
+            }
+        }
+        var node = nodes.remove(key);
+        removeFromChunk(key);
+        markDirty(key);
+        var subnet = detach(key);
+        if (subnet != null) split(subnet, neighbors);
         if (node != null) {
             // 構成要素が削除されたら、内部に保持されていたアイテムをドロップする。
             for (var freight : node.removeFreights()) {
-                result.add(freight.stack);
+                result.add(freight.stack.copy());
             }
             if (node instanceof Guidepost) {
                 // 削除された道標に隣接する外部接続のうち、孤立したものを削除する。
-                nodes.entrySet().removeIf(entry -> {
-                    if (entry.getValue() instanceof ExternalStorage
-                            && entry.getKey().distanceSq(coord) == 1
-                            && roads.stream().noneMatch(road -> road.contains(entry.getKey()))) {
-                        for (var freight : entry.getValue().removeFreights()) {
-                            result.add(freight.stack);
+                for (var direction : Direction.values()) {
+                    var neighbor = coord.relative(direction);
+                    var neighborKey = neighbor.asLong();
+                    if (nodes.get(neighborKey) instanceof ExternalStorage && !isConnected(neighborKey)) {
+                        removeFromChunk(neighborKey);
+                        markDirty(neighborKey);
+                        detach(neighborKey);
+                        for (var freight : nodes.remove(neighborKey).removeFreights()) {
+                            result.add(freight.stack.copy());
                         }
-                        return true;
-                    } else {
-                        return false;
                     }
-                });
+                }
             }
         }
         return result;
@@ -164,16 +498,431 @@ public class TransportNet implements ICapabilitySerializable<CompoundTag> {
     public boolean addRoad(Road road, Node sender, Node receiver) {
         addNode(road.sender(), sender);
         addNode(road.receiver(), receiver);
-        return roads.add(road);
+        if (!putRoad(road.sender().asLong(), road.receiver().asLong())) return false;
+        // 新しい宛先に発送できるかもしれないので、発送元を起こす。
+        wake(road.sender());
+        return true;
+    }
+
+    /**
+     * 構成要素を一覧と索引に登録し、次の更新で確認するよう予約する。
+     *
+     * @param coord 対応する詰めた座標
+     * @param node  登録する構成要素
+     */
+    private void putNode(long coord, Node node) {
+        nodes.put(coord, node);
+        if (!subnetOf.containsKey(coord)) {
+            // 先に読み込まれた領域からの道があれば、その構成要素のまとまりに加わる。
+            var subnet = createSubnet();
+            subnet.members.add(coord);
+            subnetOf.put(coord, subnet);
+            var receivers = outgoing.get(coord);
+            var senders = incoming.get(coord);
+            union(coord, receivers);
+            union(coord, senders);
+            // 既存の道で加わったときは、その道による距離の変化をまとめて反映させる。
+            if (receivers != null || senders != null) subnetOf.get(coord).routing.invalidate();
+        }
+        // 宛先より先に読み込まれた荷物や、置き直される前から向かっていた荷物の分は、外部接続が加わったときに予約させる。
+        if (node instanceof ExternalStorage storage) {
+            var arriving = inTransit.get(coord);
+            if (arriving != null) arriving.forEach(storage::reserve);
+        }
+        addToChunk(coord);
+        markDirty(coord);
+        wake(coord);
+    }
+
+    /**
+     * 道を索引に登録する。
+     *
+     * @param sender   発送元の詰めた座標
+     * @param receiver 宛先の詰めた座標
+     * @return まだ登録されていなかったか
+     */
+    private boolean putRoad(long sender, long receiver) {
+        if (!outgoing.computeIfAbsent(sender, key -> new LongOpenHashSet()).add(receiver)) return false;
+        incoming.computeIfAbsent(receiver, key -> new LongOpenHashSet()).add(sender);
+        markDirty(sender);
+        union(sender, receiver);
+        var subnet = subnetOf.get(sender);
+        if (subnet == null) return true;
+        touch(subnet);
+        if (subnet == subnetOf.get(receiver)) subnet.routing.onRoadAdded(sender, receiver);
+        return true;
+    }
+
+    /**
+     * 道を索引から削除する。
+     *
+     * @param sender   発送元の詰めた座標
+     * @param receiver 宛先の詰めた座標
+     */
+    private void removeRoad(long sender, long receiver) {
+        var receivers = outgoing.get(sender);
+        if (receivers == null || !receivers.contains(receiver)) return;
+        unlink(outgoing, sender, receiver);
+        unlink(incoming, receiver, sender);
+        markDirty(sender);
+        var subnet = subnetOf.get(sender);
+        if (subnet == null) return;
+        touch(subnet);
+        if (subnet == subnetOf.get(receiver)) {
+            split(subnet, LongArrayList.wrap(new long[]{sender, receiver}));
+        } else {
+            // 宛先がまだ読み込まれていなくても、発送元からの距離は変わるかもしれない。
+            subnet.routing.invalidate();
+        }
+    }
+
+    /**
+     * 構成要素を含まないまとまりを作り、一覧に登録する。
+     *
+     * @return 作ったまとまり
+     */
+    private Subnet createSubnet() {
+        var subnet = new Subnet(nodes, outgoing, incoming);
+        subnets.add(subnet);
+        touch(subnet);
+        return subnet;
+    }
+
+    /**
+     * まとまりの接続が変わったことを記録する。休んでいる荷物は、そのまとまりの道標だけが確認し直す。
+     *
+     * @param subnet 接続が変わったまとまり
+     */
+    private void touch(Subnet subnet) {
+        subnet.version = ++topologyVersion;
     }
 
     /**
-     * 荷物を追加する。
+     * 2つの構成要素のまとまりを1つにまとめる。小さいほうのまとまりを大きいほうに移す。
      *
+     * @param a 構成要素の詰めた座標
+     * @param b 構成要素の詰めた座標
+     */
+    private void union(long a, long b) {
+        var first = subnetOf.get(a);
+        var second = subnetOf.get(b);
+        if (first == null || second == null || first == second) return;
+        if (first.members.size() < second.members.size()) {
+            var swap = first;
+            first = second;
+            second = swap;
+        }
+        var single = second.members.size() == 1;
+        var iter = second.members.iterator();
+        while (iter.hasNext()) {
+            var member = iter.nextLong();
+            first.members.add(member);
+            subnetOf.put(member, first);
+            second.schedule.moveTo(first.schedule, member);
+            // 新しい構成要素に道をつないだときは、距離を作り直さずに更新する。道による変化は呼び出し元で反映させる。
+            if (single) first.routing.onNodeAdded(BlockCoord.fromLong(member), nodes.get(member));
+        }
+        second.members.clear();
+        first.freights.addAll(second.freights);
+        touch(first);
+        // 大きなまとまりどうしが合わさったら、次に必要になったときに作り直す。
+        if (!single) first.routing.invalidate();
+    }
+
+    /**
+     * 構成要素のまとまりを、つながっている構成要素のまとまりと1つにまとめる。
+     *
+     * @param coord     構成要素の詰めた座標
+     * @param neighbors つながっている構成要素の詰めた座標の一覧
+     */
+    private void union(long coord, @Nullable LongOpenHashSet neighbors) {
+        if (neighbors == null) return;
+        var iter = neighbors.iterator();
+        while (iter.hasNext()) union(coord, iter.nextLong());
+    }
+
+    /**
+     * 構成要素をまとまりから取り除き、更新の予定を取り消す。
+     *
+     * @param coord 構成要素の詰めた座標
+     * @return 含まれていたまとまりで、なければnull
+     */
+    @Nullable
+    private Subnet detach(long coord) {
+        var subnet = subnetOf.remove(coord);
+        if (subnet == null) return null;
+        subnet.members.remove(coord);
+        subnet.schedule.cancel(coord);
+        touch(subnet);
+        return subnet;
+    }
+
+    /**
+     * 道がなくなった後、まとまりに残った構成要素が互いにたどり着けるか確かめ、分かれた部分を新しいまとまりに移す。
+     *
+     * @param subnet    道がなくなったまとまり
+     * @param neighbors なくなった道の端にあった構成要素の詰めた座標の一覧
+     */
+    private void split(Subnet subnet, LongArrayList neighbors) {
+        // 分かれなくても距離が伸びるかもしれないので、次に必要になったときに作り直す。分かれた部分は新しく作られる。
+        subnet.routing.invalidate();
+        var pending = new LongOpenHashSet();
+        for (int i = 0; i < neighbors.size(); i++) {
+            if (subnetOf.get(neighbors.getLong(i)) == subnet) pending.add(neighbors.getLong(i));
+        }
+        // 最後に残った部分は、元のまとまりのままにする。
+        while (pending.size() > 1) {
+            var part = collect(subnet, pending);
+            if (part == null) return;
+            var created = createSubnet();
+            var iter = part.iterator();
+            while (iter.hasNext()) {
+                var member = iter.nextLong();
+                subnet.members.remove(member);
+                created.members.add(member);
+                subnetOf.put(member, created);
+                subnet.schedule.moveTo(created.schedule, member);
+            }
+            // 道を通っている荷物は、宛先のまとまりに移す。
+            subnet.freights.removeIf(freight -> part.contains(freight.getReceiverKey())).forEach(created.freights::add);
+        }
+    }
+
+    /**
+     * 確かめる構成要素の1つから道を向きによらずたどり、たどり着いたものを確かめる一覧から取り除く。
+     *
+     * @param subnet  たどるまとまり
+     * @param pending 確かめる構成要素の詰めた座標の一覧
+     * @return たどり着いた構成要素の一覧で、確かめる構成要素すべてにたどり着いたならnull
+     */
+    @Nullable
+    private LongOpenHashSet collect(Subnet subnet, LongOpenHashSet pending) {
+        var start = pending.iterator().nextLong();
+        var visited = new LongOpenHashSet();
+        var stack = new LongArrayList();
+        var indices = List.of(outgoing, incoming);
+        visited.add(start);
+        stack.add(start);
+        pending.remove(start);
+        while (!stack.isEmpty()) {
+            // 残りのすべてにたどり着いたら、まとまりは分かれていない。
+            if (pending.isEmpty()) return null;
+            var coord = stack.removeLong(stack.size() - 1);
+            for (var index : indices) {
+                var next = index.get(coord);
+                if (next == null) continue;
+                var iter = next.iterator();
+                while (iter.hasNext()) {
+                    var neighbor = iter.nextLong();
+                    if (subnetOf.get(neighbor) != subnet || !visited.add(neighbor)) continue;
+                    pending.remove(neighbor);
+                    stack.add(neighbor);
+                }
+            }
+        }
+        return pending.isEmpty() ? null : visited;
+    }
+
+    /**
+     * 索引から座標を取り除き、空になった項目を削除する。
+     *
+     * @param index 対象の索引
+     * @param key   項目の詰めた座標
+     * @param coord 取り除く詰めた座標
+     */
+    private static void unlink(Long2ObjectMap<LongOpenHashSet> index, long key, long coord) {
+        var set = index.get(key);
+        if (set == null) return;
+        set.remove(coord);
+        if (set.isEmpty()) index.remove(key);
+    }
+
+    /**
+     * この座標を含む道があるか。
+     *
+     * @param coord 確認する詰めた座標
+     * @return 道が1つ以上あるか
+     */
+    private boolean isConnected(long coord) {
+        return outgoing.containsKey(coord) || incoming.containsKey(coord);
+    }
+
+    /**
+     * ドロップさせるための道のアイテムを作る。
+     *
+     * @return 道のアイテム
+     */
+    private ItemStack createRoadStack() {
+        return roadStack.get();
+    }
+
+    /**
+     * 構成要素をチャンクごとの一覧に登録する。
+     *
+     * @param coord 構成要素の詰めた座標
+     */
+    private void addToChunk(long coord) {
+        chunkNodes.computeIfAbsent(BlockCoord.getChunkKey(coord), key -> new LongOpenHashSet()).add(coord);
+    }
+
+    /**
+     * 構成要素をチャンクごとの一覧から削除する。
+     *
+     * @param coord 構成要素の詰めた座標
+     */
+    private void removeFromChunk(long coord) {
+        var chunk = BlockCoord.getChunkKey(coord);
+        var set = chunkNodes.get(chunk);
+        if (set == null) return;
+        set.remove(coord);
+        if (set.isEmpty()) chunkNodes.remove(chunk);
+    }
+
+    /**
+     * この座標のチャンクが読み込まれているか。
+     *
+     * @param coord 確認する座標
+     * @return 読み込まれているか
+     */
+    public boolean isLoaded(BlockCoord coord) {
+        return isLoaded(coord.asLong());
+    }
+
+    private boolean isLoaded(long coord) {
+        return loadedChunks.contains(BlockCoord.getChunkKey(coord));
+    }
+
+    /**
+     * チャンクが読み込まれたとき、その中の構成要素と待機している荷物を再開させる。
+     *
+     * @param chunk 読み込まれたチャンク
+     */
+    public void onChunkLoaded(long chunk) {
+        loadedChunks.add(chunk);
+        var coords = chunkNodes.get(chunk);
+        if (coords != null) {
+            var iter = coords.iterator();
+            while (iter.hasNext()) {
+                var coord = iter.nextLong();
+                // 宛先が受け取れるようになったかもしれないので、そのまとまりの道標に確認し直させる。
+                var subnet = subnetOf.get(coord);
+                if (subnet != null) touch(subnet);
+                wake(coord);
+            }
+        }
+        // 到着時刻は過ぎているので、次の更新で宛先に渡される。
+        var parked = parkedFreights.remove(chunk);
+        if (parked != null) parked.forEach(this::schedule);
+    }
+
+    /**
+     * チャンクが読み込まれなくなったとき、その中の構成要素を休止させる。
+     *
+     * @param chunk 読み込まれなくなったチャンク
+     */
+    public void onChunkUnloaded(long chunk) {
+        loadedChunks.remove(chunk);
+        var coords = chunkNodes.get(chunk);
+        if (coords == null) return;
+        var iter = coords.iterator();
+        while (iter.hasNext()) {
+            var coord = iter.nextLong();
+            var subnet = subnetOf.get(coord);
+            if (subnet != null) {
+                touch(subnet);
+                subnet.schedule.cancel(coord);
+            }
+            if (nodes.get(coord) instanceof ExternalStorage storage) storage.invalidateHandlers();
+        }
+    }
+
+    /**
+     * 外部接続が取得したIItemHandlerを破棄させる。
+     *
+     * @param coord 外部接続の座標
+     */
+    public void invalidateHandlers(BlockCoord coord) {
+        if (nodes.get(coord.asLong()) instanceof ExternalStorage storage) storage.invalidateHandlers();
+    }
+
+    /**
+     * 構成要素を次の更新で確認するよう予約する。休止している構成要素は、チャンクが読み込まれたときに起こされる。
+     *
+     * @param coord 対象の座標
+     */
+    public void wake(BlockCoord coord) {
+        wake(coord.asLong());
+    }
+
+    private void wake(long coord) {
+        var subnet = subnetOf.get(coord);
+        if (subnet != null && isLoaded(coord)) subnet.schedule.schedule(coord, time);
+    }
+
+    /**
+     * 構成要素を含むまとまりの、構成要素や道、読み込まれているチャンクが変わったかを確かめるための値を返す。
+     * 他のまとまりが変わっても、この値は変わらない。
+     *
+     * @param coord 構成要素の座標
+     * @return まとまりが変わるたびに変わる値で、まとまりに含まれていなければ最後に割り当てた値
+     */
+    public long getTopologyVersion(BlockCoord coord) {
+        var subnet = subnetOf.get(coord.asLong());
+        return subnet != null ? subnet.version : topologyVersion;
+    }
+
+    /**
+     * 構成要素が受け取れる荷物が増えたとき、そこに道が入っている道標に宛先を確認し直させる。
+     *
+     * @param coord 空きが増えた構成要素の座標
+     */
+    public void onCapacityFreed(BlockCoord coord) {
+        var senders = incoming.get(coord.asLong());
+        if (senders == null) return;
+        var iter = senders.iterator();
+        while (iter.hasNext()) {
+            var sender = iter.nextLong();
+            if (nodes.get(sender) instanceof Guidepost guidepost) guidepost.unpark();
+            wake(sender);
+        }
+    }
+
+    /**
+     * 発送された荷物を追加する。
+     *
+     * @param context 現在の状態
      * @param freight 追加する荷物。
      */
-    public void addFreight(Freight freight) {
-        freights.add(freight);
+    public void addFreight(TransportContext context, Freight freight) {
+        // 外部接続の空きを予約したら、同じ更新の間の引き渡しの試行結果と、そこに届くとした探索結果は使えなくなる。
+        if (putFreight(freight)) context.invalidateReserved(freight.getReceiver());
+        stats.onDispatched(freight);
+    }
+
+    /**
+     * 道を通っている荷物の一覧に登録し、宛先が外部接続なら空きを予約させる。
+     *
+     * @param freight 登録する荷物
+     * @return 空きを予約させたか
+     */
+    private boolean putFreight(Freight freight) {
+        schedule(freight);
+        inTransit.computeIfAbsent(freight.getReceiverKey(), key -> new ArrayList<>()).add(freight);
+        // 荷物は直前の発送元の領域に保存する。
+        markDirty(freight.getSenderKey());
+        if (!(nodes.get(freight.getReceiverKey()) instanceof ExternalStorage storage)) return false;
+        storage.reserve(freight);
+        return true;
+    }
+
+    /**
+     * 荷物を宛先のまとまりの、道を通っている荷物の一覧に加える。
+     *
+     * @param freight 加える荷物
+     */
+    private void schedule(Freight freight) {
+        var subnet = subnetOf.get(freight.getReceiverKey());
+        (subnet != null ? subnet.freights : freights).add(freight);
     }
 
     /**
@@ -183,8 +932,10 @@ public class TransportNet implements ICapabilitySerializable<CompoundTag> {
      * @return 保持されていたアイテムの一覧
      */
     public ArrayList<Freight> removeFreight(BlockCoord coord) {
-        var node = nodes.get(coord);
+        var key = coord.asLong();
+        var node = nodes.get(key);
         if (node != null) {
+            markDirty(key);
             return node.removeFreights();
         } else {
             return new ArrayList<>();
@@ -192,69 +943,242 @@ public class TransportNet implements ICapabilitySerializable<CompoundTag> {
     }
 
     /**
-     * 荷物を受け取れる宛先があるか。
+     * この座標に届いたアイテムを受け取れる宛先があるか。
      *
      * @param context 現在の状態
-     * @param freight 対象となる荷物
+     * @param stack   対象となるアイテム
+     * @param route   直前の発送元までの経路
+     * @param coord   アイテムが届く座標
      * @return 宛先があるか
      */
-    public boolean hasNextReceiver(TransportContext context, Freight freight) {
-        for (var road : roads) {
-            if (!road.sender().equals(freight.getReceiver()) || freight.hasPassed(road.receiver())) {
+    public boolean hasNextReceiver(TransportContext context, ItemStack stack, Route route, BlockCoord coord) {
+        // 網目状の輸送網で同じ探索を繰り返さないよう、結果はこの更新の間共有する。
+        return context.isReachable(coord, stack, route, () -> searchNextReceiver(context, stack, route, coord));
+    }
+
+    private boolean searchNextReceiver(TransportContext context, ItemStack stack, Route route, BlockCoord coord) {
+        // 経路の延長は、実際に宛先を確認するときに1度だけ作る。
+        Route next = null;
+        var key = coord.asLong();
+        // 外部接続にたどり着けない宛先は確認しない。
+        var routes = getRoutes(key);
+        for (int i = 0; i < routes.size(); i++) {
+            var receiverKey = routes.getLong(i);
+            if (receiverKey == key) continue;
+            if (route.contains(receiverKey)) {
+                // 経路に含まれる宛先を通らなかったので、探索の結果は経路に依存する。
+                context.onExcluded(receiverKey);
                 continue;
             }
-            var node = nodes.get(road.receiver());
-            if (node.canReceive(context, freight.getNext(context, road.receiver()))) {
-                return true;
-            }
+            var node = getActiveNode(receiverKey);
+            if (node == null) continue;
+            if (next == null) next = route.then(coord);
+            context.beginProbe();
+            var received = node.canReceive(context, stack, next, BlockCoord.fromLong(receiverKey));
+            context.endProbe(receiverKey, received);
+            if (received) return true;
         }
         return false;
     }
 
     /**
-     * この座標に接続されている宛先の一覧を返す。
+     * この座標から外部接続にたどり着ける宛先を、最も近い外部接続までの道のりが短い順に返す。休止している宛先も含む。
+     *
+     * @param coord 発送元の座標
+     * @return 宛先の詰めた座標の一覧で、変更できない
+     */
+    public LongList getRoutes(BlockCoord coord) {
+        return getRoutes(coord.asLong());
+    }
+
+    private LongList getRoutes(long coord) {
+        var subnet = subnetOf.get(coord);
+        return subnet != null ? subnet.routing.getRoutes(coord) : LongImmutableList.of();
+    }
+
+    /**
+     * 休止していない構成要素を返す。
+     *
+     * @param coord 構成要素の詰めた座標
+     * @return 構成要素で、存在しないか休止しているならnull
+     */
+    @Nullable
+    public Node getActiveNode(long coord) {
+        return isLoaded(coord) ? nodes.get(coord) : null;
+    }
+
+    /**
+     * この座標から出ている道があるか。
      *
      * @param coord 接続元の座標
-     * @return 宛先の一覧
+     * @return 宛先が1つ以上あるか
      */
-    public HashMap<BlockCoord, Node> getReceivers(BlockCoord coord) {
-        var result = new HashMap<BlockCoord, Node>();
-        for (var road : roads) {
-            if (road.sender().equals(coord)) {
-                result.put(road.receiver(), nodes.get(road.receiver()));
-            }
-        }
-        return result;
+    public boolean hasReceivers(BlockCoord coord) {
+        return outgoing.containsKey(coord.asLong());
     }
 
     /**
      * 毎tickの更新処理。
+     * 宛先が受け取れるかはアイテムの受け渡し先への試行で決まり、試行はサーバーのスレッドでしかできないので、
+     * 発送の判断も含めてすべてこのスレッドで順に処理する。
      *
-     * @param level 輸送網の存在するディメンション
+     * @param world    輸送網の存在するディメンション
+     * @param settings 設定値
      */
-    public void update(Level level) {
+    public void update(WorldAccess world, TransportSettings settings) {
         // 今回の更新で使うためのデータを作る。
-        var context = new TransportContext(level, this);
-        // 運搬中の荷物を順に確認する。
-        var iter = freights.iterator();
-        while (iter.hasNext()) {
-            var freight = iter.next();
-            if (freight.isArrived(context.time)) {
-                // 荷物が到着したら宛先に渡す。
-                BlockCoord coord = freight.getReceiver();
-                var node = nodes.get(coord);
-                if (node != null) {
-                    node.receive(context, freight);
-                } else {
-                    // 宛先がなくなっていたらドロップさせる。
-                    freight.drop(level);
-                }
-                iter.remove();
+        var context = new TransportContext(world, settings, this);
+        time = context.time;
+        var profiler = world.getProfiler();
+        profiler.push("transporter");
+        profiler.push("arrivals");
+        long start = System.nanoTime();
+        // 時間の上限を超えたら、残りは次のtickに回す。残った荷物や構成要素は予定の時刻が早いので、次のtickで先に処理される。
+        long deadline = settings.getDeadline(start, 1.0);
+        // どのまとまりにも属さない荷物は、宛先がなければドロップするだけなので先に処理する。
+        boolean exceeded = pollArrivals(context, freights, deadline);
+        stats.add(TransportStats.Phase.ARRIVALS, System.nanoTime() - start);
+        profiler.pop();
+        // 空になったまとまりを取り除き、現在時刻までにすることがないまとまりは更新しない。
+        subnets.removeIf(Subnet::isEmpty);
+        var due = subnets.stream().filter(subnet -> subnet.isDue(context.time)).toList();
+        for (int i = 0; i < due.size(); i++) {
+            // 残りの時間を、まだ更新していないまとまりで等分する。早く終わったまとまりの残りは後のまとまりが使う。
+            long now = System.nanoTime();
+            long share = deadline == Long.MAX_VALUE ? deadline : now + (deadline - now) / (due.size() - i);
+            exceeded |= updateSubnet(context, due.get(i), now, share);
+        }
+        if (exceeded) stats.onBudgetExceeded();
+        stats.endTick(context.time);
+        profiler.pop();
+    }
+
+    /**
+     * まとまり1つ分の、到着した荷物と予約された構成要素を処理する。
+     *
+     * @param context  現在の状態
+     * @param subnet   対象のまとまり
+     * @param start    処理を始めた時刻（ナノ秒）
+     * @param deadline このまとまりの処理を打ち切る時刻（ナノ秒）
+     * @return 時間の上限を超えて処理を打ち切ったか
+     */
+    private boolean updateSubnet(TransportContext context, Subnet subnet, long start, long deadline) {
+        var profiler = context.world.getProfiler();
+        profiler.push("arrivals");
+        // 到着の処理だけで割り当てを使い切らないよう、到着の処理には半分までしか使わない。
+        boolean exceeded = pollArrivals(context, subnet.freights, start + (deadline - start) / 2);
+        long end = System.nanoTime();
+        stats.add(TransportStats.Phase.ARRIVALS, end - start);
+        profiler.popPush("nodes");
+        // 更新が必要な構成要素だけを予約された順に更新する。
+        while (subnet.schedule.isDue(context.time)) {
+            var key = subnet.schedule.poll();
+            var node = nodes.get(key);
+            if (node == null) continue;
+            // 状態を変えた構成要素は自身で保存を求めるので、何もしなかった更新では領域を書き直さない。
+            var next = node.update(context, BlockCoord.fromLong(key));
+            // 同じtickのうちに再び更新しないよう、早くても次のtickにする。
+            if (next != Node.IDLE) subnet.schedule.schedule(key, Math.max(next, context.time + 1));
+            if (System.nanoTime() >= deadline) {
+                exceeded = true;
+                break;
+            }
+        }
+        long finish = System.nanoTime();
+        stats.add(TransportStats.Phase.NODES, finish - end);
+        subnet.record(finish - start);
+        profiler.pop();
+        return exceeded;
+    }
+
+    /**
+     * 到着した荷物だけを到着時刻の順に取り出し、宛先に渡す。
+     *
+     * @param context  現在の状態
+     * @param schedule 道を通っている荷物の一覧
+     * @param deadline 処理を打ち切る時刻（ナノ秒）
+     * @return 時間の上限を超えて処理を打ち切ったか
+     */
+    private boolean pollArrivals(TransportContext context, FreightSchedule schedule, long deadline) {
+        Freight freight;
+        while ((freight = schedule.poll(context.time)) != null) {
+            // 荷物が到着したら宛先に渡す。
+            var receiver = freight.getReceiverKey();
+            if (!isLoaded(receiver)) {
+                // 宛先が休止していたら、チャンクが読み込まれるまで待機させる。宛先の領域もまだ読み込まれていないかもしれない。
+                parkedFreights.computeIfAbsent(BlockCoord.getChunkKey(receiver), key -> new ArrayList<>()).add(freight);
+            } else {
+                deliver(context, freight);
             }
+            // 少なくとも1つは処理して、処理が進まなくなることを防ぐ。
+            if (System.nanoTime() >= deadline) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 到着した荷物を宛先に渡す。宛先がなくなっていたらドロップさせる。
+     *
+     * @param context 現在の状態
+     * @param freight 到着した荷物
+     */
+    private void deliver(TransportContext context, Freight freight) {
+        var coord = freight.getReceiverKey();
+        markDirty(freight.getSenderKey());
+        var arriving = inTransit.get(coord);
+        if (arriving != null && arriving.remove(freight) && arriving.isEmpty()) inTransit.remove(coord);
+        var node = nodes.get(coord);
+        if (node != null) {
+            node.receive(context, freight);
+            markDirty(coord);
+            wake(coord);
+        } else {
+            freight.drop(context.world);
+            stats.onDropped(freight);
         }
-        // 輸送網の構成要素を更新する。
-        for (var entry : nodes.entrySet()) {
-            entry.getValue().update(context, entry.getKey());
+    }
+
+    /**
+     * 処理時間と輸送量の統計を返す。
+     *
+     * @return 統計
+     */
+    public TransportStats getStats() {
+        return stats;
+    }
+
+    /**
+     * 道を通っている荷物の数を返す。
+     *
+     * @return 待機しているものを含む荷物の数
+     */
+    public int getFreightCount() {
+        return freights.size()
+                + subnets.stream().mapToInt(Subnet::getFreightCount).sum()
+                + parkedFreights.values().stream().mapToInt(ArrayList::size).sum();
+    }
+
+    /**
+     * 道でつながった構成要素のまとまりの一覧を返す。
+     *
+     * @return まとまりの一覧で、変更してはならない
+     */
+    public List<Subnet> getSubnets() {
+        return Collections.unmodifiableList(subnets);
+    }
+
+    /**
+     * 発送を待機している荷物がある道標ごとに、その数を返す。
+     *
+     * @return 座標ごとの荷物の数
+     */
+    public HashMap<BlockCoord, Integer> getQueueDepths() {
+        var result = new HashMap<BlockCoord, Integer>();
+        for (var entry : nodes.long2ObjectEntrySet()) {
+            if (entry.getValue() instanceof Guidepost guidepost && guidepost.getQueueSize() > 0) {
+                result.put(BlockCoord.fromLong(entry.getLongKey()), guidepost.getQueueSize());
+            }
         }
+        return result;
     }
 }
@@ -0,0 +1,28 @@
+package com.tntmodders.transporter.logic;
+
+/**
+ * 輸送網の更新に使う設定値。
+ *
+ * @param extractCount 外部接続から1つの荷物として取り出すアイテムの最大数
+ * @param tickBudget   1tickの更新に使う時間の上限（マイクロ秒）で、0なら制限しない
+ * @param laneCapacity 道標が1つの道に一度に発送する荷物の最大数
+ * @param laneCooldown 道標が1つの道に発送してから、次に発送するまでのtick数
+ */
+public record TransportSettings(int extractCount, int tickBudget, int laneCapacity, int laneCooldown) {
+    /**
+     * 設定ファイルを使わないときの既定値。更新の時間は制限しない。
+     */
+    public static final TransportSettings DEFAULT = new TransportSettings(64, 0, 1, 20);
+
+    /**
+     * 更新を始めた時刻から、処理を打ち切る時刻を求める。
+     *
+     * @param start    更新を始めた時刻（ナノ秒）
+     * @param fraction 上限のうち使ってよい割合
+     * @return 打ち切る時刻（ナノ秒）で、制限しないなら{@link Long#MAX_VALUE}
+     */
+    public long getDeadline(long start, double fraction) {
+        if (tickBudget <= 0) return Long.MAX_VALUE;
+        return start + (long) (tickBudget * 1000L * fraction);
+    }
+}
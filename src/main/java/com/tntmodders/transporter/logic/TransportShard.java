@@ -0,0 +1,135 @@
+package com.tntmodders.transporter.logic;
+
+import com.mojang.logging.LogUtils;
+import net.minecraft.SharedConstants;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.saveddata.SavedData;
+import org.slf4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 輸送網のうち、32×32チャンクの領域1つ分の状態を保存する。
+ * 変更された領域だけが保存され、領域内のチャンクが初めて読み込まれたときに読み込まれる。
+ * 書き込みは別のスレッドで行い、ディメンションの保存の最後とサーバーの停止時に終わるまで待つ。
+ */
+public class TransportShard extends SavedData {
+    /**
+     * チャンクの座標から領域の座標を求めるときのシフト量。
+     */
+    public static final int REGION_SHIFT = 5;
+    private static final Logger LOGGER = LogUtils.getLogger();
+    /**
+     * 書き込みを実行するスレッド。追加された順に1つずつ実行するので、同じファイルへの書き込みが前後することはない。
+     */
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "Transporter Save");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final TransportNet net;
+    private final long region;
+
+    private TransportShard(TransportNet net, long region, @Nullable CompoundTag tag) {
+        this.net = net;
+        this.region = region;
+        net.loadRegion(region, this, tag);
+    }
+
+    /**
+     * 領域がまだ読み込まれていなければ、保存されていた状態を輸送網に読み込む。
+     *
+     * @param level  輸送網の存在するディメンション
+     * @param net    輸送網
+     * @param region 領域を表す値
+     */
+    public static void load(ServerLevel level, TransportNet net, long region) {
+        if (net.hasShard(region)) return;
+        level.getDataStorage().computeIfAbsent(
+                tag -> new TransportShard(net, region, tag),
+                () -> new TransportShard(net, region, null),
+                getName(region)
+        );
+    }
+
+    /**
+     * 変更されたが保存先のない領域に、保存先を用意する。
+     *
+     * @param level 輸送網の存在するディメンション
+     * @param net   輸送網
+     */
+    public static void loadPending(ServerLevel level, TransportNet net) {
+        var regions = net.getPendingRegions();
+        for (int i = 0; i < regions.size(); i++) {
+            load(level, net, regions.getLong(i));
+        }
+    }
+
+    /**
+     * このチャンクを含む領域を表す値を返す。
+     *
+     * @param chunk {@link ChunkPos#toLong()}と同じ形式の値
+     * @return 領域を表す値
+     */
+    public static long getRegionKey(long chunk) {
+        return ChunkPos.asLong(ChunkPos.getX(chunk) >> REGION_SHIFT, ChunkPos.getZ(chunk) >> REGION_SHIFT);
+    }
+
+    private static String getName(long region) {
+        return "transporter_" + ChunkPos.getX(region) + "_" + ChunkPos.getZ(region);
+    }
+
+    /**
+     * 実行待ちの書き込みがすべて終わるまで待つ。
+     */
+    public static void awaitWrites() {
+        try {
+            // 順番に実行されるので、最後に追加した処理が終われば、それまでの書き込みも終わっている。
+            WRITER.submit(() -> {
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.error("Failed to wait for saving transport network.", e);
+        }
+    }
+
+    @Override
+    public CompoundTag save(CompoundTag tag) {
+        return net.snapshotRegion(region).toNBT(tag);
+    }
+
+    @Override
+    public void save(File file) {
+        if (!isDirty()) return;
+        // サーバーのスレッドでは状態を複製するだけにして、NBTへの変換と書き込みは別のスレッドで行う。
+        var snapshot = net.snapshotRegion(region);
+        setDirty(false);
+        WRITER.execute(() -> write(snapshot, file));
+    }
+
+    /**
+     * 複製した状態を、{@link SavedData#save(File)}と同じ形式でファイルに書き込む。
+     *
+     * @param snapshot 複製した状態
+     * @param file     書き込み先
+     */
+    private static void write(RegionSnapshot snapshot, File file) {
+        var tag = new CompoundTag();
+        try {
+            tag.put("data", snapshot.toNBT(new CompoundTag()));
+            tag.putInt("DataVersion", SharedConstants.getCurrentVersion().getWorldVersion());
+            NbtIo.writeCompressed(tag, file);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Could not save data {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.tntmodders.transporter.logic;
+
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 輸送網の更新にかかった時間と、輸送量の統計。
+ */
+public class TransportStats {
+    /**
+     * 輸送量を集計する期間のtick数。
+     */
+    public static final int WINDOW = 20 * 20;
+    /**
+     * 1tickごとの時間の平均に、新しい値を反映させる割合。
+     */
+    static final double SMOOTHING = 0.05;
+
+    /**
+     * 更新処理の段階。構成要素の更新は外部接続からの取り出しを、取り出しなどは経路の探索を内側に含む。
+     */
+    public enum Phase {
+        /**
+         * 到着した荷物を宛先に渡す段階。
+         */
+        ARRIVALS,
+        /**
+         * 予約された構成要素を更新する段階。
+         */
+        NODES,
+        /**
+         * 外部接続から荷物を取り出す段階。
+         */
+        EXTRACTION,
+        /**
+         * 荷物を受け取れる宛先を探す段階。
+         */
+        ROUTING
+    }
+
+    /**
+     * 現在のtickで、段階ごとにかかった時間の合計。
+     */
+    private final EnumMap<Phase, Long> current = new EnumMap<>(Phase.class);
+    /**
+     * 直前のtickで、段階ごとにかかった時間。
+     */
+    private final EnumMap<Phase, Long> last = new EnumMap<>(Phase.class);
+    /**
+     * 段階ごとにかかった時間の、1tickあたりの平均。
+     */
+    private final EnumMap<Phase, Double> average = new EnumMap<>(Phase.class);
+    /**
+     * 集計中の期間に、発送元と宛先の詰めた座標ごとに発送されたアイテムの数。発送のたびに記録するので、箱詰めしない。
+     */
+    private final Long2ObjectOpenHashMap<Long2LongOpenHashMap> dispatched = new Long2ObjectOpenHashMap<>();
+    /**
+     * 直前の期間の、道ごとの1秒あたりのアイテムの数。
+     */
+    private Map<Road, Double> rates = Map.of();
+    /**
+     * 集計中の期間が始まった時刻。
+     */
+    private long windowStart = 0;
+    /**
+     * 宛先がなくなりドロップした荷物の数。
+     */
+    private long droppedFreights = 0;
+    /**
+     * 宛先がなくなりドロップしたアイテムの数。
+     */
+    private long droppedItems = 0;
+    /**
+     * 時間の上限を超え、処理を次のtickに回したtickの数。
+     */
+    private long budgetExceeded = 0;
+
+    /**
+     * 段階にかかった時間を加える。
+     *
+     * @param phase 段階
+     * @param nanos かかった時間（ナノ秒）
+     */
+    public void add(Phase phase, long nanos) {
+        current.merge(phase, nanos, Long::sum);
+    }
+
+    /**
+     * 荷物の発送を記録する。
+     *
+     * @param freight 発送した荷物
+     */
+    public void onDispatched(Freight freight) {
+        dispatched.computeIfAbsent(freight.getSenderKey(), key -> new Long2LongOpenHashMap())
+                .addTo(freight.getReceiverKey(), freight.stack.getCount());
+    }
+
+    /**
+     * 荷物のドロップを記録する。
+     *
+     * @param freight ドロップした荷物
+     */
+    public void onDropped(Freight freight) {
+        droppedFreights++;
+        droppedItems += freight.stack.getCount();
+    }
+
+    /**
+     * 時間の上限を超え、処理を次のtickに回したことを記録する。
+     */
+    public void onBudgetExceeded() {
+        budgetExceeded++;
+    }
+
+    /**
+     * 1tick分の記録を終え、平均と輸送量に反映する。
+     *
+     * @param time 現在時刻
+     */
+    public void endTick(long time) {
+        for (var phase : Phase.values()) {
+            long nanos = current.getOrDefault(phase, 0L);
+            last.put(phase, nanos);
+            average.merge(phase, (double) nanos, (old, value) -> old + (value - old) * SMOOTHING);
+        }
+        current.clear();
+        if (time - windowStart < WINDOW) return;
+        // 期間が終わったら、1秒あたりの数に直す。
+        var seconds = (time - windowStart) / 20.0;
+        var result = new HashMap<Road, Double>();
+        for (var sender : dispatched.long2ObjectEntrySet()) {
+            var senderCoord = BlockCoord.fromLong(sender.getLongKey());
+            for (var receiver : sender.getValue().long2LongEntrySet()) {
+                result.put(new Road(senderCoord, BlockCoord.fromLong(receiver.getLongKey())), receiver.getLongValue() / seconds);
+            }
+        }
+        rates = result;
+        dispatched.clear();
+        windowStart = time;
+    }
+
+    /**
+     * 直前のtickで段階にかかった時間を返す。
+     *
+     * @param phase 段階
+     * @return かかった時間（ナノ秒）
+     */
+    public long getLast(Phase phase) {
+        return last.getOrDefault(phase, 0L);
+    }
+
+    /**
+     * 段階にかかった時間の、1tickあたりの平均を返す。
+     *
+     * @param phase 段階
+     * @return 平均の時間（ナノ秒）
+     */
+    public double getAverage(Phase phase) {
+        return average.getOrDefault(phase, 0.0);
+    }
+
+    /**
+     * 直前の期間の、道ごとの1秒あたりのアイテムの数を返す。
+     *
+     * @return 道ごとの輸送量で、変更してはならない
+     */
+    public Map<Road, Double> getRates() {
+        return rates;
+    }
+
+    public long getDroppedFreights() {
+        return droppedFreights;
+    }
+
+    public long getDroppedItems() {
+        return droppedItems;
+    }
+
+    public long getBudgetExceeded() {
+        return budgetExceeded;
+    }
+}
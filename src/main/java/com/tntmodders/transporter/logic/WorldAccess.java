@@ -0,0 +1,45 @@
+package com.tntmodders.transporter.logic;
+
+import net.minecraft.core.Direction;
+import net.minecraft.util.profiling.ProfilerFiller;
+import net.minecraft.world.item.ItemStack;
+import net.minecraftforge.common.util.LazyOptional;
+import net.minecraftforge.items.IItemHandler;
+
+import javax.annotation.Nullable;
+
+/**
+ * 輸送網が使う、ディメンションへの操作。ゲームを起動せずに輸送網を動かせるよう、必要なものだけに限る。
+ */
+public interface WorldAccess {
+    /**
+     * 現在時刻を返す。
+     *
+     * @return 現在のtick
+     */
+    long getGameTime();
+
+    /**
+     * この座標にあるインベントリのIItemHandlerを取得する。チャンクの読み込みを引き起こしてはならない。
+     *
+     * @param coord 対象の座標
+     * @param side  対象の面
+     * @return 対象のIItemHandlerで、読み込まれていないかインベントリがなければ空
+     */
+    LazyOptional<IItemHandler> getItemHandler(BlockCoord coord, @Nullable Direction side);
+
+    /**
+     * この座標にアイテムをドロップする。
+     *
+     * @param coord ドロップする座標
+     * @param stack ドロップするアイテム
+     */
+    void drop(BlockCoord coord, ItemStack stack);
+
+    /**
+     * 処理時間を記録するプロファイラを返す。
+     *
+     * @return プロファイラ
+     */
+    ProfilerFiller getProfiler();
+}
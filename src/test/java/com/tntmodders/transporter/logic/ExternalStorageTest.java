@@ -0,0 +1,102 @@
+package com.tntmodders.transporter.logic;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.Direction;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import net.minecraftforge.items.ItemStackHandler;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 向かってくる荷物のための空きの予約と、その解除を確かめる。
+ */
+class ExternalStorageTest {
+    private static final BlockCoord GUIDEPOST = new BlockCoord(8, 64, 8);
+    private static final BlockCoord STORAGE = GUIDEPOST.relative(Direction.UP);
+    private final InMemoryWorld world = new InMemoryWorld();
+    private final TransportNet net = new TransportNet(() -> ItemStack.EMPTY);
+    private final ExternalStorage storage = new ExternalStorage();
+    /**
+     * 1スタック分だけ入るインベントリ。
+     */
+    private final ItemStackHandler handler = new ItemStackHandler(1);
+
+    @BeforeAll
+    static void bootstrap() {
+        // アイテムを扱うため、レジストリを初期化する。
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+    }
+
+    @BeforeEach
+    void setup() {
+        world.addInventory(STORAGE, handler);
+        net.addRoad(new Road(GUIDEPOST, STORAGE), new Guidepost(), storage);
+        net.onChunkLoaded(GUIDEPOST.getChunkKey());
+    }
+
+    /**
+     * 新しい更新の状態で、外部接続がアイテムを受け取れるか確かめる。
+     */
+    private boolean canReceive(ItemStack stack) {
+        var context = new TransportContext(world, TransportSettings.DEFAULT, net);
+        return storage.canReceive(context, stack, Route.of(GUIDEPOST), STORAGE);
+    }
+
+    private void send(ItemStack stack) {
+        var context = new TransportContext(world, TransportSettings.DEFAULT, net);
+        net.addFreight(context, new Freight(context, stack, GUIDEPOST, STORAGE));
+    }
+
+    @Test
+    void freightReservesSpaceUntilDelivered() {
+        assertTrue(canReceive(new ItemStack(Items.COBBLESTONE, 64)));
+        send(new ItemStack(Items.COBBLESTONE, 64));
+        // インベントリはまだ空だが、向かっている荷物の分で埋まっている。
+        assertFalse(canReceive(new ItemStack(Items.COBBLESTONE)));
+        assertFalse(canReceive(new ItemStack(Items.DIRT)));
+        // 到着して引き渡されるまで進める。
+        for (int i = 0; i < 100 && handler.getStackInSlot(0).isEmpty(); i++) {
+            world.tick();
+            net.update(world, TransportSettings.DEFAULT);
+        }
+        assertEquals(64, handler.getStackInSlot(0).getCount());
+        // 引き渡した分の予約は解除されているので、取り出せば再び受け取れる。
+        handler.extractItem(0, 64, false);
+        assertTrue(canReceive(new ItemStack(Items.COBBLESTONE, 64)));
+    }
+
+    @Test
+    void sameItemReservationsShareSlot() {
+        send(new ItemStack(Items.COBBLESTONE, 32));
+        // 同じアイテムは予約された分に重ねられる。
+        assertTrue(canReceive(new ItemStack(Items.COBBLESTONE, 32)));
+        assertFalse(canReceive(new ItemStack(Items.COBBLESTONE, 33)));
+        // 他のアイテムのためのスロットは残っていない。
+        assertFalse(canReceive(new ItemStack(Items.DIRT)));
+    }
+
+    @Test
+    void removedFreightReleasesReservation() {
+        // インベントリが埋まっているので、到着した荷物は外部接続で待機する。
+        handler.setStackInSlot(0, new ItemStack(Items.DIRT, 64));
+        send(new ItemStack(Items.COBBLESTONE, 64));
+        for (int i = 0; i < 40; i++) {
+            world.tick();
+            net.update(world, TransportSettings.DEFAULT);
+        }
+        handler.extractItem(0, 64, false);
+        // 待機している荷物の分は、まだ予約されている。
+        assertFalse(canReceive(new ItemStack(Items.COBBLESTONE)));
+        // 待機している荷物を取り除けば、予約も解除される。
+        assertEquals(1, storage.removeFreights().size());
+        assertTrue(canReceive(new ItemStack(Items.COBBLESTONE, 64)));
+    }
+}
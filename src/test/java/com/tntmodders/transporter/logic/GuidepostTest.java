@@ -0,0 +1,93 @@
+package com.tntmodders.transporter.logic;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.Direction;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import net.minecraftforge.items.ItemStackHandler;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 道標が道ごとに発送の間隔を空けることを確かめる。
+ */
+class GuidepostTest {
+    private static final BlockCoord SENDER = new BlockCoord(4, 64, 8);
+    private static final BlockCoord GUIDEPOST = new BlockCoord(8, 64, 8);
+    /**
+     * 1つの道に一度に1つだけ発送し、次は20tick後に発送する設定。
+     */
+    private static final TransportSettings SETTINGS = new TransportSettings(64, 0, 1, 20);
+    private final InMemoryWorld world = new InMemoryWorld();
+    private final TransportNet net = new TransportNet(() -> ItemStack.EMPTY);
+    private final Guidepost guidepost = new Guidepost();
+
+    @BeforeAll
+    static void bootstrap() {
+        // アイテムを扱うため、レジストリを初期化する。
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+    }
+
+    /**
+     * 道標から外部接続への道を加える。
+     */
+    private void addStorage(Direction direction) {
+        var coord = GUIDEPOST.relative(direction);
+        world.addInventory(coord, new ItemStackHandler(4));
+        net.addRoad(new Road(GUIDEPOST, coord), guidepost, new ExternalStorage());
+    }
+
+    /**
+     * 発送元から届いた荷物を、道標に待機させる。
+     */
+    private void receive(int count) {
+        net.addRoad(new Road(SENDER, GUIDEPOST), new Guidepost(), guidepost);
+        net.onChunkLoaded(GUIDEPOST.getChunkKey());
+        var context = new TransportContext(world, SETTINGS, net);
+        for (int i = 0; i < count; i++) {
+            guidepost.receive(context, new Freight(context, new ItemStack(Items.COBBLESTONE), SENDER, GUIDEPOST));
+        }
+    }
+
+    private long update() {
+        return guidepost.update(new TransportContext(world, SETTINGS, net), GUIDEPOST);
+    }
+
+    private void advance(int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            world.tick();
+        }
+    }
+
+    @Test
+    void laneRestsAfterDispatch() {
+        addStorage(Direction.UP);
+        receive(2);
+        // 1つ発送したら、その道は20tick後まで休む。
+        assertEquals(20, update());
+        assertEquals(1, guidepost.getQueueSize());
+        advance(19);
+        assertEquals(20, update());
+        assertEquals(1, guidepost.getQueueSize());
+        advance(1);
+        assertEquals(Node.IDLE, update());
+        assertEquals(0, guidepost.getQueueSize());
+    }
+
+    @Test
+    void lanesRestIndependently() {
+        addStorage(Direction.UP);
+        addStorage(Direction.SOUTH);
+        receive(3);
+        // 道ごとに1つずつ発送し、残りは道が空くまで待つ。
+        assertEquals(20, update());
+        assertEquals(1, guidepost.getQueueSize());
+        advance(20);
+        assertEquals(Node.IDLE, update());
+        assertEquals(0, guidepost.getQueueSize());
+    }
+}
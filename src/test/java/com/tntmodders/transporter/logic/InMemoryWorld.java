@@ -0,0 +1,60 @@
+package com.tntmodders.transporter.logic;
+
+import net.minecraft.core.Direction;
+import net.minecraft.util.profiling.InactiveProfiler;
+import net.minecraft.util.profiling.ProfilerFiller;
+import net.minecraft.world.item.ItemStack;
+import net.minecraftforge.common.util.LazyOptional;
+import net.minecraftforge.items.IItemHandler;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+
+/**
+ * インベントリだけを持つ、メモリ上のディメンション。ゲームを起動せずに輸送網を動かすために使う。
+ */
+final class InMemoryWorld implements WorldAccess {
+    /**
+     * 座標ごとのインベントリ。どの面からも同じものを使う。
+     */
+    private final HashMap<BlockCoord, LazyOptional<IItemHandler>> inventories = new HashMap<>();
+    private long time = 0;
+
+    /**
+     * 任意のIItemHandlerをインベントリとして設置する。
+     *
+     * @param coord   インベントリの座標
+     * @param handler 設置するIItemHandler
+     */
+    public void addInventory(BlockCoord coord, IItemHandler handler) {
+        inventories.put(coord, LazyOptional.of(() -> handler));
+    }
+
+    /**
+     * 時刻を1tick進める。
+     */
+    public void tick() {
+        time++;
+    }
+
+    @Override
+    public long getGameTime() {
+        return time;
+    }
+
+    @Override
+    public LazyOptional<IItemHandler> getItemHandler(BlockCoord coord, @Nullable Direction side) {
+        var handler = inventories.get(coord);
+        return handler == null ? LazyOptional.empty() : handler;
+    }
+
+    @Override
+    public void drop(BlockCoord coord, ItemStack stack) {
+        // ベンチマークではドロップされたアイテムを使わないので、そのまま消す。
+    }
+
+    @Override
+    public ProfilerFiller getProfiler() {
+        return InactiveProfiler.INSTANCE;
+    }
+}
@@ -0,0 +1,109 @@
+package com.tntmodders.transporter.logic;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.Direction;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import net.minecraftforge.items.ItemStackHandler;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 宛先があるかの探索と、その結果の使い回しを確かめる。
+ */
+class TransportContextTest {
+    private final InMemoryWorld world = new InMemoryWorld();
+    private final TransportNet net = new TransportNet(() -> ItemStack.EMPTY);
+    /**
+     * 実際に宛先を探した回数。
+     */
+    private int searches = 0;
+
+    @BeforeAll
+    static void bootstrap() {
+        // アイテムを扱うため、レジストリを初期化する。
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+    }
+
+    private static BlockCoord node(int index) {
+        return new BlockCoord(index, 64, 0);
+    }
+
+    /**
+     * 番号ごとの接続先をたどって宛先を探す。接続先の番号が負なら宛先とする。
+     *
+     * @param context 現在の状態
+     * @param graph   番号ごとの接続先の一覧
+     * @param index   探し始める番号
+     * @return 宛先があるか
+     */
+    private boolean probe(TransportContext context, int[][] graph, int index) {
+        var stack = new ItemStack(Items.COBBLESTONE);
+        return context.isReachable(node(index), stack, Route.of(node(-1)), () -> {
+            searches++;
+            for (var next : graph[index]) {
+                if (next < 0 || probe(context, graph, next)) return true;
+            }
+            return false;
+        });
+    }
+
+    @Test
+    void cycleWithoutReceiverIsUnreachableEverywhere() {
+        // 0→1→2→0の循環で、どこからも宛先にたどり着けない。
+        int[][] graph = {{1}, {2}, {0}};
+        var context = new TransportContext(world, TransportSettings.DEFAULT, net);
+        assertFalse(probe(context, graph, 0));
+        assertEquals(3, searches);
+        // 循環の途中で保留した結果も、宛先なしと決まった時点で残される。
+        assertFalse(probe(context, graph, 1));
+        assertFalse(probe(context, graph, 2));
+        assertEquals(3, searches);
+    }
+
+    @Test
+    void pendingResultIsNotKeptWhenCycleFindsReceiver() {
+        // 0は先に1を確かめ、1は探索中の0に戻る。0はその後で宛先を見つける。
+        int[][] graph = {{1, -1}, {0, 2}, {}};
+        var context = new TransportContext(world, TransportSettings.DEFAULT, net);
+        assertTrue(probe(context, graph, 0));
+        // 0を宛先なしと仮定した1の結果は残らず、改めて探すと0を通って宛先にたどり着く。
+        assertTrue(probe(context, graph, 1));
+        // 2は循環に関わらずに宛先なしと決まったので、探し直さない。
+        var before = searches;
+        assertFalse(probe(context, graph, 2));
+        assertTrue(probe(context, graph, 1));
+        assertEquals(before, searches);
+    }
+
+    @Test
+    void resultDependingOnRouteIsNotReusedForOtherRoutes() {
+        // 道標aとbが双方向につながり、bの外部接続は満杯で、aの外部接続だけが受け取れる。
+        var a = new BlockCoord(8, 64, 8);
+        var b = new BlockCoord(12, 64, 8);
+        var full = b.relative(Direction.UP);
+        var open = a.relative(Direction.UP);
+        var fullHandler = new ItemStackHandler(1);
+        fullHandler.setStackInSlot(0, new ItemStack(Items.DIRT, 64));
+        world.addInventory(full, fullHandler);
+        world.addInventory(open, new ItemStackHandler(1));
+        net.addRoad(new Road(a, b), new Guidepost(), new Guidepost());
+        net.addRoad(new Road(b, a), new Guidepost(), new Guidepost());
+        net.addRoad(new Road(b, full), new Guidepost(), new ExternalStorage());
+        net.addRoad(new Road(a, open), new Guidepost(), new ExternalStorage());
+        net.onChunkLoaded(a.getChunkKey());
+        var context = new TransportContext(world, TransportSettings.DEFAULT, net);
+        var stack = new ItemStack(Items.COBBLESTONE);
+        var sender = new BlockCoord(4, 64, 8);
+        // aを通ってきた荷物は、bからaに戻れないので宛先がない。
+        assertFalse(net.hasNextReceiver(context, stack, Route.of(sender).then(a), b));
+        // aを通っていない荷物は、bからaに戻って宛先にたどり着ける。
+        assertTrue(net.hasNextReceiver(context, stack, Route.of(sender), b));
+    }
+}
@@ -0,0 +1,203 @@
+package com.tntmodders.transporter.logic;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.core.Direction;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.item.Items;
+import net.minecraft.world.level.saveddata.SavedData;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 構成要素のまとまりの管理と、保存形式の移行を確かめる。
+ */
+class TransportNetTest {
+    private static final BlockCoord FIRST = new BlockCoord(8, 64, 8);
+    private static final BlockCoord SECOND = new BlockCoord(12, 64, 8);
+    private static final BlockCoord STORAGE = SECOND.relative(Direction.UP);
+    private static final long REGION = BlockCoord.getRegionKey(FIRST.asLong());
+    private final InMemoryWorld world = new InMemoryWorld();
+
+    @BeforeAll
+    static void bootstrap() {
+        // アイテムを扱うため、レジストリを初期化する。
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+    }
+
+    /**
+     * 空になったまとまりを取り除いたうえで、まとまりごとの構成要素の数を小さい順に返す。
+     */
+    private List<Integer> getSubnetSizes(TransportNet net) {
+        world.tick();
+        net.update(world, TransportSettings.DEFAULT);
+        return net.getSubnets().stream().map(Subnet::getSize).sorted().toList();
+    }
+
+    @Test
+    void roadsUniteAndRemovalSplitsSubnets() {
+        var net = new TransportNet(() -> ItemStack.EMPTY);
+        var a = new BlockCoord(0, 64, 0);
+        var b = new BlockCoord(4, 64, 0);
+        var c = new BlockCoord(8, 64, 0);
+        var d = new BlockCoord(12, 64, 0);
+        net.addRoad(new Road(a, b), new Guidepost(), new Guidepost());
+        net.addRoad(new Road(c, d), new Guidepost(), new Guidepost());
+        assertEquals(List.of(2, 2), getSubnetSizes(net));
+        // 向きによらず、道でつながればまとまりは1つになる。
+        net.addRoad(new Road(c, b), new Guidepost(), new Guidepost());
+        assertEquals(List.of(4), getSubnetSizes(net));
+        // つないでいた道標を削除すると、残りは道でつながったものごとに分かれる。
+        net.removeNode(b);
+        assertEquals(List.of(1, 2), getSubnetSizes(net));
+    }
+
+    /**
+     * 2つの道標と外部接続からなり、道標の間に荷物が1つ通っている輸送網を作る。
+     */
+    private TransportNet buildNet() {
+        var net = new TransportNet(() -> ItemStack.EMPTY);
+        net.addRoad(new Road(FIRST, SECOND), new Guidepost(), new Guidepost());
+        net.addRoad(new Road(SECOND, STORAGE), new Guidepost(), new ExternalStorage());
+        net.onChunkLoaded(FIRST.getChunkKey());
+        var context = new TransportContext(world, TransportSettings.DEFAULT, net);
+        net.addFreight(context, new Freight(context, new ItemStack(Items.COBBLESTONE, 16), FIRST, SECOND));
+        return net;
+    }
+
+    /**
+     * まとめて保存されていた状態を読み込み、領域ごとの保存先に移す。
+     *
+     * @param tag まとめて保存されていた状態
+     * @return 領域ごとの保存先に書き込まれた状態
+     */
+    private CompoundTag migrate(CompoundTag tag) {
+        var net = new TransportNet(() -> ItemStack.EMPTY);
+        net.load(tag);
+        assertEquals(1, net.getFreightCount());
+        // 移し終えるまでは、停止しても失われないよう、すべての状態をまとめて保存し続ける。
+        assertEquals(2, net.toNBT().getInt("version"));
+        var shard = new MemoryShard();
+        // 移し終える前に書きかけた状態は、まとめて読み込んだ状態で上書きする。
+        net.loadRegion(REGION, shard, new CompoundTag());
+        assertTrue(shard.isDirty());
+        assertEquals(1, net.getFreightCount());
+        net.onSaved();
+        assertEquals(2, net.toNBT().getInt("version"));
+        // 領域が書き込まれたら、次の保存からは版だけを保存する。
+        var written = net.snapshotRegion(REGION).toNBT(new CompoundTag());
+        shard.setDirty(false);
+        net.onSaved();
+        var marker = net.toNBT();
+        assertEquals(TransportNet.FORMAT_VERSION, marker.getInt("version"));
+        assertFalse(marker.contains("nodes"));
+        return written;
+    }
+
+    /**
+     * 移した状態を新しい形式として読み込み、元の輸送網と同じ状態になっているか確かめる。
+     */
+    private void assertRestored(TransportNet expected, CompoundTag written) {
+        var net = new TransportNet(() -> ItemStack.EMPTY);
+        var marker = new CompoundTag();
+        marker.putInt("version", TransportNet.FORMAT_VERSION);
+        net.load(marker);
+        var shard = new MemoryShard();
+        net.loadRegion(REGION, shard, written);
+        assertFalse(shard.isDirty());
+        assertEquals(expected.getFreightCount(), net.getFreightCount());
+        var restored = net.snapshotRegion(REGION);
+        var original = expected.snapshotRegion(REGION);
+        assertArrayEquals(sorted(original.coords()), sorted(restored.coords()));
+        assertEquals(getRoads(original), getRoads(restored));
+        assertEquals(original.freights().size(), restored.freights().size());
+    }
+
+    private static long[] sorted(long[] coords) {
+        var result = coords.clone();
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * 複製に含まれる道を、順番によらず比べられる形にする。
+     */
+    private static List<String> getRoads(RegionSnapshot snapshot) {
+        var roads = snapshot.roads();
+        return IntStream.range(0, roads.length / 2)
+                .mapToObj(i -> BlockCoord.fromLong(roads[2 * i]) + "->" + BlockCoord.fromLong(roads[2 * i + 1]))
+                .sorted()
+                .toList();
+    }
+
+    @Test
+    void singleFileFormatMigratesToShards() {
+        var net = buildNet();
+        var tag = net.snapshotRegion(REGION).toNBT(new CompoundTag());
+        tag.putInt("version", 2);
+        assertRestored(net, migrate(tag));
+    }
+
+    @Test
+    void legacyFormatMigratesToShards() {
+        var net = buildNet();
+        var tag = new CompoundTag();
+        var nodes = new ListTag();
+        nodes.add(legacyNode("guidepost", FIRST));
+        nodes.add(legacyNode("guidepost", SECOND));
+        nodes.add(legacyNode("external_storage", STORAGE));
+        tag.put("nodes", nodes);
+        var roads = new ListTag();
+        roads.add(legacyRoad(FIRST, SECOND));
+        roads.add(legacyRoad(SECOND, STORAGE));
+        tag.put("roads", roads);
+        var freight = new CompoundTag();
+        freight.put("stack", new ItemStack(Items.COBBLESTONE, 16).serializeNBT());
+        var route = new ListTag();
+        route.add(FIRST.toNBT());
+        route.add(SECOND.toNBT());
+        freight.put("route", route);
+        freight.putLong("started_time", 0);
+        var freights = new ListTag();
+        freights.add(freight);
+        tag.put("freights", freights);
+        assertRestored(net, migrate(tag));
+    }
+
+    private static CompoundTag legacyNode(String type, BlockCoord coord) {
+        var tag = new CompoundTag();
+        tag.putString("type", type);
+        tag.put("coord", coord.toNBT());
+        tag.put("freights", new ListTag());
+        return tag;
+    }
+
+    private static CompoundTag legacyRoad(BlockCoord sender, BlockCoord receiver) {
+        var tag = new CompoundTag();
+        tag.put("sender", sender.toNBT());
+        tag.put("receiver", receiver.toNBT());
+        return tag;
+    }
+
+    /**
+     * 書き込まずに、変更されたかだけを記録する保存先。
+     */
+    private static final class MemoryShard extends SavedData {
+        @Override
+        public CompoundTag save(CompoundTag tag) {
+            return tag;
+        }
+    }
+}